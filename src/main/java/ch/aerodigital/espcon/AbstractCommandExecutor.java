@@ -5,6 +5,7 @@
  */
 package ch.aerodigital.espcon;
 
+import static ch.aerodigital.espcon.App.serialPort;
 import java.io.PrintWriter;
 
 /**
@@ -16,6 +17,15 @@ public abstract class AbstractCommandExecutor implements CommandExecutor {
     // all user info goes into writer
     protected PrintWriter writer;
 
+    private CommandCompletionListener completionListener;
+
+    // executor shown in the status line, the one it replaced comes back after
+    private static volatile AbstractCommandExecutor active;
+    private AbstractCommandExecutor outer;
+    private SerialPortEventListenerX sink; // as pushed, null if none
+    private volatile long progressDone;
+    private volatile long progressTotal;
+
     /**
      *
      * @param writer
@@ -25,4 +35,138 @@ public abstract class AbstractCommandExecutor implements CommandExecutor {
         this.writer = writer;
     }
 
+    @Override
+    public void setCompletionListener(CommandCompletionListener listener) {
+        this.completionListener = listener;
+    }
+
+    /**
+     * Remove own sink and pass the control on. Without completion listener
+     * the interactive mode takes over, lua is sent to get the next prompt.
+     *
+     * @param success
+     * @param lua to run after the command, may be empty
+     */
+    protected void finish(boolean success, String lua) {
+        stopListening();
+        handOver(success, lua);
+    }
+
+    protected void finish(boolean success) {
+        finish(success, "");
+    }
+
+    /**
+     * Same as finish, for executors which have no sink installed.
+     *
+     * @param success
+     * @param lua to run after the command, may be empty
+     */
+    protected void handOver(boolean success, String lua) {
+        leave();
+        if (completionListener != null) {
+            completionListener.completed(success);
+        } else {
+            serialPort.writeStringX(lua + "\n");
+        }
+    }
+
+    /**
+     * Install the sink, from now on this executor is the active one. If the
+     * sink throws, e.g. because the port is gone, the command fails.
+     *
+     * @param sink
+     */
+    protected void listen(SerialPortEventListenerX sink) {
+        if (active != this) {
+            outer = active;
+            active = this;
+        }
+        this.sink = event -> {
+            try {
+                return sink.serialEvent(event);
+            } catch (RuntimeException ex) {
+                failed(ex);
+                return true;
+            }
+        };
+        serialPort.pushEventListener(this.sink);
+    }
+
+    private void failed(RuntimeException ex) {
+        writer.println();
+        writer.println(getName() + " failed: " + ex.getMessage());
+        writer.flush();
+        try {
+            finish(false);
+        } catch (SerialPortXException ex2) {
+            // the port is gone, the next input reports it
+        }
+    }
+
+    /**
+     * Remove the sink and stop being the active executor, without handing
+     * over.
+     */
+    protected void stopListening() {
+        removeSink();
+        leave();
+    }
+
+    /**
+     * Remove the sink but stay the active executor, e.g. while nested
+     * executors do the work.
+     */
+    protected void removeSink() {
+        if (sink == null) {
+            return;
+        }
+        if (!serialPort.popEventListener(sink)) {
+            throw new IllegalStateException(getName() + ": sink is not on top");
+        }
+        sink = null;
+    }
+
+    private void leave() {
+        if (active == this) {
+            active = outer;
+        }
+    }
+
+    /**
+     * @param done units done so far
+     * @param total all units, 0 if unknown
+     */
+    protected void setProgress(long done, long total) {
+        progressDone = done;
+        progressTotal = total;
+    }
+
+    /**
+     * @return short name for the status line
+     */
+    protected String getName() {
+        return getClass().getSimpleName().replace("CommandExecutor", "");
+    }
+
+    /**
+     * Forget the active executors, their sinks went with the port they were
+     * pushed on.
+     */
+    public static void reset() {
+        active = null;
+    }
+
+    /**
+     * @return name and progress of the active executor, null if there is
+     * none
+     */
+    public static String describeActive() {
+        AbstractCommandExecutor ce = active;
+        if (ce == null) {
+            return null;
+        }
+        long total = ce.progressTotal;
+        return ce.getName() + (total > 0 ? " " + ce.progressDone * 100 / total + "%" : "");
+    }
 }
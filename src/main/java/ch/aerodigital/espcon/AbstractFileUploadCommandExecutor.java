@@ -0,0 +1,75 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Common part of all executors sending a local file to the esp.
+ *
+ * @author Pawel Jasinski
+ */
+public abstract class AbstractFileUploadCommandExecutor extends AbstractCommandExecutor {
+
+    protected String src;
+    protected String target;
+
+    public AbstractFileUploadCommandExecutor(String command) throws InvalidCommandException {
+        String args[] = command.split("\\s+");
+        if (args.length == 1 || args.length > 3) {
+            throw new InvalidCommandException("upload needs 1 or 2 arguments");
+        }
+        if (args.length == 2) {
+            src = args[1];
+            target = args[1];
+        } else {
+            src = args[1];
+            target = args[2];
+        }
+    }
+
+    protected AbstractFileUploadCommandExecutor(String src, String target) {
+        this.src = src;
+        this.target = target;
+    }
+
+    /**
+     * @return the src
+     */
+    public String getSrc() {
+        return src;
+    }
+
+    /**
+     * @return the target
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * Content of the target file as it will be on the esp after upload.
+     *
+     * @return stream to be closed by the caller
+     * @throws IOException
+     */
+    public InputStream openContent() throws IOException {
+        return new BufferedInputStream(new FileInputStream(src));
+    }
+
+    /**
+     * @return lua to run on the esp after the upload, empty if none
+     */
+    public String getAfterUploadLua() {
+        return "";
+    }
+
+    @Override
+    protected String getName() {
+        return super.getName() + " " + target;
+    }
+}
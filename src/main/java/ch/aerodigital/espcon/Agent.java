@@ -0,0 +1,128 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+/**
+ * Helper module kept on the esp, so commands send a short request instead of
+ * their lua helpers.
+ *
+ * The module is the file FILE, it defines the table _A with the version and
+ * one function per request. Requests load the module on demand, after a
+ * reset of the esp too. Answers are framed like BlockReader blocks, hash
+ * answers like RemoteHash. Errors are ~~~BLK-ERROR~~~ followed by the reason.
+ *
+ * Requests:
+ * <pre>
+ * r(name,offset,length) content of a file
+ * h(name[,size])        size and hash, see RemoteHash
+ * l()                   name TAB size per line
+ * x(name)               remove a file
+ * e(lua)                run lua, the results as text
+ * </pre>
+ *
+ * @author Pawel Jasinski
+ */
+public class Agent {
+
+    public static final int VERSION = 1;
+    public static final String FILE = "espcon_agent.lua";
+    public static final String START_MARKER = "~~~AGENT-START~~~";
+    public static final String END_MARKER = "~~~AGENT-END~~~";
+
+    // set once the esp reported the expected version
+    private static volatile boolean active;
+
+    public static boolean isActive() {
+        return active;
+    }
+
+    public static void setActive(boolean active) {
+        Agent.active = active;
+    }
+
+    /**
+     * @return content of the module file
+     */
+    public static String lua() {
+        return ""
+                + "_A={v=" + VERSION + "}\n"
+                + RemoteHash.lua()
+                + BlockReader.lua()
+                + "_A.h=_hs _A.r=_bk _hs=nil _bk=nil\n"
+                + "_A.s=function(s)\n"
+                + "  local h='~~~BLK'..'~~~'\n"
+                + "  for i=1,#s," + BlockReader.BLOCK_SIZE + " do\n"
+                + "    local b=s:sub(i,i+" + (BlockReader.BLOCK_SIZE - 1) + ")\n"
+                + "    uart.write(0,h,string.char(bit.rshift(#b,8),bit.band(#b,255)),b)\n"
+                + "  end\n"
+                + "  uart.write(0,h,'\\0\\0')\n"
+                + "end\n"
+                + "_A.f=function(m)\n"
+                + "  print('~~~BLK-'..'ERROR~~~'..m)\n"
+                + "end\n"
+                + "_A.l=function()\n"
+                + "  local t={}\n"
+                + "  for k,v in pairs(file.list()) do\n"
+                + "    t[#t+1]=k..'\\t'..v..'\\n'\n"
+                + "  end\n"
+                + "  _A.s(table.concat(t))\n"
+                + "end\n"
+                + "_A.x=function(n)\n"
+                + "  if file.list()[n]==nil then return _A.f('no such file') end\n"
+                + "  file.remove(n)\n"
+                + "  _A.s('')\n"
+                + "end\n"
+                + "_A.e=function(c)\n"
+                + "  local f,e=(loadstring or load)(c)\n"
+                + "  if not f then return _A.f(e) end\n"
+                + "  local r={pcall(f)}\n"
+                + "  if not r[1] then return _A.f(tostring(r[2])) end\n"
+                + "  for i=2,#r do r[i]=tostring(r[i]) end\n"
+                + "  _A.s(table.concat(r,'\\t',2))\n"
+                + "end\n"
+                + "return _A\n";
+    }
+
+    /**
+     * @return lua line loading the module and printing its version between
+     * START_MARKER and END_MARKER, nil if it is not there
+     */
+    public static String load() {
+        return "_A=nil pcall(dofile,'" + FILE + "') "
+                + "print('~~~AGENT-'..'START~~~'..tostring(_A and _A.v)..'~~~AGENT-'..'END~~~')";
+    }
+
+    private static String request(String call) {
+        return "(_A or dofile('" + FILE + "'))." + call;
+    }
+
+    public static String read(String name, long offset, long length) {
+        return request("r('" + name + "'," + offset + "," + (length < 0 ? Integer.MAX_VALUE : length) + ")");
+    }
+
+    public static String hash(String name, long size) {
+        return request("h('" + name + "'" + (size < 0 ? "" : "," + size) + ")");
+    }
+
+    public static String list() {
+        return request("l()");
+    }
+
+    public static String remove(String name) {
+        return request("x('" + name + "')");
+    }
+
+    /**
+     * @throws InvalidCommandException if the request does not fit into one
+     * REPL line
+     */
+    public static String eval(String lua) throws InvalidCommandException {
+        String line = request("e(" + Util.longString(lua) + ")");
+        if (line.getBytes().length > LuaPacker.LINE_LIMIT) {
+            throw new InvalidCommandException("lua too long for --eval, at most "
+                    + (LuaPacker.LINE_LIMIT - (line.getBytes().length - lua.getBytes().length)) + " bytes");
+        }
+        return line;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import static ch.aerodigital.espcon.App.serialPort;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import jssc.SerialPortEvent;
+
+/**
+ * --agent install|load|off, manages the helper module on the esp, see Agent.
+ *
+ * install uploads the module and loads it, load checks the version of the
+ * module already on the esp. Commands use the agent only after a load found
+ * the expected version.
+ *
+ * @author Pawel Jasinski
+ */
+public class AgentCommandExecutor extends AbstractCommandExecutor {
+
+    private final String action;
+
+    private enum State {
+        IDLE,
+        UPLOAD,
+        WAIT_VERSION,
+    }
+    private State state;
+    private Path module;
+    private String version;
+
+    public AgentCommandExecutor(String command) throws InvalidCommandException {
+        String args[] = command.split("\\s+");
+        if (args.length != 2 || !(args[1].equals("install") || args[1].equals("load") || args[1].equals("off"))) {
+            throw new InvalidCommandException("expect install, load or off as parameter");
+        }
+        action = args[1];
+        state = State.IDLE;
+    }
+
+    @Override
+    public void start() throws InvalidCommandException {
+        switch (action) {
+            case "install":
+                install();
+                break;
+            case "load":
+                load();
+                break;
+            default:
+                Agent.setActive(false);
+                writer.println("agent off");
+                handOver(true, "_A=nil");
+                break;
+        }
+    }
+
+    private void install() throws InvalidCommandException {
+        Agent.setActive(false);
+        try {
+            module = Files.createTempFile("espcon_agent", ".lua");
+            Files.write(module, Agent.lua().getBytes());
+        } catch (IOException ex) {
+            throw new InvalidCommandException("unable to write the agent: " + ex.getMessage());
+        }
+        FileUploadCommandExecutor upload = new FileUploadCommandExecutor(module.toString(), Agent.FILE);
+        upload.setWriter(writer);
+        upload.setCompletionListener(this::installed);
+        state = State.UPLOAD;
+        try {
+            upload.start();
+        } catch (InvalidCommandException ex) {
+            deleteModule();
+            throw ex;
+        }
+    }
+
+    private void installed(boolean success) {
+        deleteModule();
+        if (!success) {
+            writer.println("agent not installed");
+            handOver(false, "");
+            return;
+        }
+        load();
+    }
+
+    private void deleteModule() {
+        // the upload can not be resumed without its source
+        FileUploadCommandExecutor.discardIncomplete(module.toString());
+        try {
+            Files.deleteIfExists(module);
+        } catch (IOException ex) {
+            // temp file left behind
+        }
+    }
+
+    private void load() {
+        listen(new SerialPortSink());
+        state = State.WAIT_VERSION;
+        serialPort.writeStringX(Agent.load() + "\n");
+    }
+
+    private void loaded() {
+        boolean current = String.valueOf(Agent.VERSION).equals(version);
+        Agent.setActive(current);
+        if (current) {
+            writer.println("agent " + version + " loaded");
+        } else if ("nil".equals(version)) {
+            writer.println("no agent on esp, --agent install to install it");
+        } else {
+            writer.println("agent " + version + " on esp, expected " + Agent.VERSION
+                    + ", --agent install to update it");
+        }
+        state = State.IDLE;
+        // the prompt follows, no need to ask for one
+        stopListening();
+    }
+
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener {
+
+        private static final int PROMPT = 0;
+        private static final int START = 1;
+        private static final int END = 2;
+        private final MarkerMatcher matcher;
+
+        public SerialPortSink() {
+            matcher = new MarkerMatcher(this, "> ", Agent.START_MARKER, Agent.END_MARKER);
+        }
+
+        @Override
+        public boolean serialEvent(SerialPortEvent event) {
+            if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+                return false;
+            }
+            matcher.feed(serialPort);
+            return true;
+        }
+
+        @Override
+        public boolean marker(int marker) {
+            if (state == State.WAIT_VERSION && marker == END) {
+                version = matcher.text();
+                loaded();
+                return false;
+            }
+            if (marker == PROMPT && state == State.WAIT_VERSION) {
+                // load failed without printing the version
+                writer.println("agent: " + matcher.text().trim());
+                state = State.IDLE;
+                Agent.setActive(false);
+                finish(false);
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import static ch.aerodigital.espcon.App.serialPort;
+import java.io.ByteArrayOutputStream;
+import java.util.TreeMap;
+import jssc.SerialPortEvent;
+
+/**
+ * Commands which are one request to the agent: --ls, --rm file and
+ * --eval lua.
+ *
+ * @author Pawel Jasinski
+ */
+public class AgentRequestCommandExecutor extends AbstractCommandExecutor {
+
+    private enum Request {
+        LIST,
+        REMOVE,
+        EVAL,
+    }
+    private final Request request;
+    private final String argument;
+    private final ByteArrayOutputStream answer = new ByteArrayOutputStream();
+
+    public AgentRequestCommandExecutor(String command) throws InvalidCommandException {
+        if (!Agent.isActive()) {
+            throw new InvalidCommandException("needs the agent, see --agent");
+        }
+        String args[] = command.split("\\s+", 2);
+        switch (args[0]) {
+            case "--ls":
+                request = Request.LIST;
+                break;
+            case "--rm":
+                request = Request.REMOVE;
+                break;
+            case "--eval":
+                request = Request.EVAL;
+                break;
+            default:
+                throw new InvalidCommandException("not an agent command: " + args[0]);
+        }
+        if (request == Request.LIST ? args.length != 1 : args.length != 2 || args[1].trim().isEmpty()) {
+            throw new InvalidCommandException(args[0] + (request == Request.LIST
+                    ? " expects no parameter" : " expects a parameter"));
+        }
+        argument = args.length == 2 ? args[1].trim() : null;
+    }
+
+    @Override
+    public void start() throws InvalidCommandException {
+        String lua;
+        switch (request) {
+            case LIST:
+                lua = Agent.list();
+                break;
+            case REMOVE:
+                lua = Agent.remove(argument);
+                break;
+            default:
+                lua = Agent.eval(argument);
+                break;
+        }
+        listen(new SerialPortSink());
+        serialPort.writeStringX(lua + "\n");
+    }
+
+    private void show(String text) {
+        switch (request) {
+            case LIST:
+                // sorted, unlike file.list()
+                TreeMap<String, String> files = new TreeMap<>();
+                for (String line : text.split("\n")) {
+                    String[] entry = line.split("\t");
+                    if (entry.length == 2) {
+                        files.put(entry[0], entry[1]);
+                    }
+                }
+                files.forEach((name, size) -> writer.println(String.format("%-20s : %s", name, size)));
+                break;
+            case REMOVE:
+                writer.println(argument + " removed");
+                break;
+            default:
+                if (!text.isEmpty()) {
+                    writer.println(text);
+                }
+                break;
+        }
+    }
+
+    private class SerialPortSink implements SerialPortEventListenerX, BlockReader.Listener {
+
+        private final BlockReader blocks = new BlockReader(this);
+
+        @Override
+        public boolean serialEvent(SerialPortEvent event) {
+            if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+                return false;
+            }
+            blocks.feed(serialPort);
+            return true;
+        }
+
+        @Override
+        public void block(byte[] data, int off, int len) {
+            answer.write(data, off, len);
+        }
+
+        @Override
+        public void end(String error) {
+            // output of eval before the answer
+            writer.print(blocks.getOutside());
+            if (error != null) {
+                writer.println(error);
+                writer.flush();
+                finish(false);
+                return;
+            }
+            show(new String(answer.toByteArray()));
+            writer.flush();
+            // the prompt follows, no need to ask for one
+            stopListening();
+        }
+    }
+}
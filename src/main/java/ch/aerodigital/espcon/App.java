@@ -10,7 +10,6 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
@@ -19,6 +18,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import jssc.SerialPort;
 import jssc.SerialPortEvent;
 import jssc.SerialPortException;
@@ -69,6 +69,13 @@ public class App {
     public static SerialPortX serialPort;
     public static int echo = 0;
     public static boolean autorun = true;
+    public static final int DEFAULT_UPLOAD_WINDOW = 4;
+    public static int uploadWindow = DEFAULT_UPLOAD_WINDOW;
+    public static boolean skipUnchanged = false;
+    public static int rxBatch = SerialPortX.DEFAULT_RX_BATCH;
+    public static int rxLatency = SerialPortX.DEFAULT_RX_LATENCY;
+    public static final int DEFAULT_MAX_FPS = 30;
+    public static int maxFps = DEFAULT_MAX_FPS;
 
     private Terminal systemTerminal;
     private History history;
@@ -153,14 +160,21 @@ public class App {
     }
 
     enum BindingEnum {
-        Discard, SelfInsert, Mouse
+        Discard, SelfInsert, Mouse, Paste
     }
 
+    // bracketed paste, the terminal wraps pasted text in these
+    private static final String PASTE_ON = "\033[?2004h";
+    private static final String PASTE_OFF = "\033[?2004l";
+    private static final String PASTE_BEGIN = "\033[200~";
+    private static final String PASTE_END = "\033[201~";
+
     private KeyMap<Object> createEmptyKeyMap() {
         KeyMap<Object> keyMap = new KeyMap<>();
         keyMap.setUnicode(BindingEnum.SelfInsert);
         keyMap.setNomatch(BindingEnum.SelfInsert);
         keyMap.bind(BindingEnum.Mouse, key(systemTerminal, InfoCmp.Capability.key_mouse));
+        keyMap.bind(BindingEnum.Paste, PASTE_BEGIN);
         return keyMap;
     }
 
@@ -196,6 +210,11 @@ public class App {
     private final KeyMap<Object> appKeyMap;
 
     private final Display display;
+    private ScreenRenderer renderer;
+    private static final int STATUS_INTERVAL = 500; // ms
+    private volatile AttributedString statusLine = new AttributedString("");
+    private long lastRxCount;
+    private long lastTxCount;
     private final Size size = new Size(); // this is system terminal size
     // private final screenSize; // this is one row less than system terminal
 
@@ -222,44 +241,65 @@ public class App {
     private OutputStream masterOutput;
     private OutputStream masterInputOutput;
 
+    /**
+     * Console output on its way to the screen. Bytes are decoded in place,
+     * all buffers are allocated once.
+     */
     private class MasterOutputStream extends OutputStream {
 
-        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final ByteBuffer in = ByteBuffer.allocate(8192);
+        private final CharBuffer out = CharBuffer.allocate(8192);
         private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
                 .onMalformedInput(CodingErrorAction.REPLACE)
                 .onUnmappableCharacter(CodingErrorAction.REPLACE);
 
         @Override
         public synchronized void write(int b) {
-            buffer.write(b);
+            if (!in.hasRemaining()) {
+                decode();
+            }
+            in.put((byte) b);
         }
 
         @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            buffer.write(b, off, len);
+        public synchronized void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (!in.hasRemaining()) {
+                    decode();
+                }
+                int n = Math.min(len, in.remaining());
+                in.put(b, off, n);
+                off += n;
+                len -= n;
+            }
         }
 
-        @Override
-        public synchronized void flush() throws IOException {
-            int size = buffer.size();
-            if (size > 0) {
-                CharBuffer out;
-                for (;;) {
-                    out = CharBuffer.allocate(size);
-                    ByteBuffer in = ByteBuffer.wrap(buffer.toByteArray());
-                    CoderResult result = decoder.decode(in, out, false);
-                    if (result.isOverflow()) {
-                        size *= 2;
-                    } else {
-                        buffer.reset();
-                        buffer.write(in.array(), in.arrayOffset(), in.remaining());
-                        break;
-                    }
-                }
+        /**
+         * Move complete characters to the screen, a partial one stays for the
+         * next round.
+         */
+        private void decode() {
+            in.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(in, out, false);
                 if (out.position() > 0) {
                     out.flip();
                     screenTerminal.write(out);
-                    masterInputOutput.write(screenTerminal.read().getBytes());
+                    out.clear();
+                }
+            } while (result.isOverflow());
+            in.compact();
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (in.position() > 0) {
+                decode();
+                // answers of the screen to terminal queries
+                String reply = screenTerminal.read();
+                if (!reply.isEmpty()) {
+                    masterInputOutput.write(reply.getBytes());
                 }
             }
         }
@@ -280,8 +320,10 @@ public class App {
         systemTerminal.puts(InfoCmp.Capability.keypad_xmit);
         // keep mouse as-is for copy/paste of xterm
         // systemTerminal.trackMouse(Terminal.MouseTracking.Any);
+        systemTerminal.writer().write(PASTE_ON);
         systemTerminal.flush();
         executor = Executors.newSingleThreadScheduledExecutor();
+        executor.scheduleAtFixedRate(this::refreshStatusLine, 0, STATUS_INTERVAL, TimeUnit.MILLISECONDS);
         try {
             screenTerminal = new ScreenTerminal(size.getColumns(), size.getRows() - statusLineSize) {
                 @Override
@@ -296,8 +338,14 @@ public class App {
                 public void write(int b) throws IOException {
                     console.processInputByte(b);
                 }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    console.processInputBytes(b, off, len);
+                }
             };
             Integer colors = systemTerminal.getNumericCapability(InfoCmp.Capability.max_colors);
+            renderer = new ScreenRenderer(colors != null ? colors : 8);
             term = (colors != null && colors >= 256) ? "screen-256color" : "screen";
             this.console = new LineDisciplineTerminal("espcon", term, masterOutput, null) {
                 @Override
@@ -317,6 +365,7 @@ public class App {
         } finally {
             executor.shutdown();
             // systemTerminal.trackMouse(Terminal.MouseTracking.Off);
+            systemTerminal.writer().write(PASTE_OFF);
             systemTerminal.puts(InfoCmp.Capability.keypad_local);
             systemTerminal.puts(InfoCmp.Capability.exit_ca_mode);
             systemTerminal.flush();
@@ -355,6 +404,9 @@ public class App {
                     if (b == BindingEnum.Mouse) {
                         MouseEvent event = systemTerminal.readMouseEvent();
                         // System.err.println(event.toString());
+                    } else if (b == BindingEnum.Paste) {
+                        screenTerminal.historyScrollTerminate();
+                        paste(readPaste(keyboardreader));
                     } else if (b instanceof String || b instanceof String[]) {
                         ByteArrayOutputStream out = new ByteArrayOutputStream();
                         ByteArrayOutputStream err = new ByteArrayOutputStream();
@@ -381,40 +433,66 @@ public class App {
         }
     }
 
+    /**
+     * @return text up to the end of the bracketed paste, with \n line ends
+     */
+    private String readPaste(BindingReader keyboardreader) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < PASTE_END.length()
+                || sb.indexOf(PASTE_END, sb.length() - PASTE_END.length()) < 0) {
+            int c = keyboardreader.readCharacter();
+            if (c < 0) {
+                return sb.toString();
+            }
+            sb.appendCodePoint(c);
+        }
+        sb.setLength(sb.length() - PASTE_END.length());
+        return sb.toString().replace("\r\n", "\n").replace('\r', '\n');
+    }
+
+    /**
+     * Single lines are typed in as usual. More lines go to the esp in one
+     * burst, the REPL is asked to do it with --paste replacing whatever was
+     * typed so far.
+     */
+    private void paste(String text) throws IOException {
+        String body = text.endsWith("\n") ? text.substring(0, text.length() - 1) : text;
+        if (state != State.REPL || body.indexOf('\n') < 0) {
+            masterInputOutput.write(text.replace('\n', '\r').getBytes());
+            return;
+        }
+        pendingPaste.set(body);
+        // ^E ^U clear the line being edited
+        masterInputOutput.write("\005\025--paste\r".getBytes());
+    }
+
+    private final AtomicReference<String> pendingPaste = new AtomicReference<>();
+
     private boolean prevIsScrolling = false;
 
     private void redrawLoop() {
+        long lastFrame = 0;
         while (running.get()) {
             try {
                 synchronized (dirty) {
-                    while (running.get() && !dirty.compareAndSet(true, false)) {
+                    while (running.get() && !dirty.get()) {
                         dirty.wait();
                     }
                 }
+                // changes until the next frame slot go into the same frame
+                long wait = lastFrame + TimeUnit.SECONDS.toNanos(1) / maxFps - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
+            dirty.set(false);
+            lastFrame = System.nanoTime();
             handleResize();
-            long[] screen = new long[(size.getRows() - statusLineSize) * size.getColumns()];
-            // Fill
-            Arrays.fill(screen, 0x00000020L);
-            int[] cursor = new int[2];
-
-            // redraw();
-            screenTerminal.dump(screen, 0, 0, size.getRows() - statusLineSize, size.getColumns(), cursor);
-            List<AttributedString> lines = new ArrayList<>();
-            for (int y = 0; y < size.getRows() - statusLineSize; y++) {
-                AttributedStringBuilder sb = new AttributedStringBuilder(size.getColumns());
-                // TODO: bring back colors/bold etc.
-                for (int x = 0; x < size.getColumns(); x++) {
-                    long d = screen[y * size.getColumns() + x];
-                    int c = (int) (d & 0xffffffffL);
-                    sb.append((char) c);
-                }
-                lines.add(sb.toAttributedString());
-            }
-            // lines.add(new AttributedString(""));
-            lines.add(calculateStatusLine());
+            List<AttributedString> lines = renderer.render(screenTerminal, size.getRows() - statusLineSize, size.getColumns());
+            int[] cursor = renderer.getCursor();
+            lines.add(statusLine);
             if (screenTerminal.isScrolling && !prevIsScrolling) {
                 systemTerminal.puts(Capability.cursor_invisible);
                 prevIsScrolling = true;
@@ -427,8 +505,25 @@ public class App {
         }
     }
 
+    /**
+     * Runs every STATUS_INTERVAL ms, redraws only if the text changed.
+     */
+    private void refreshStatusLine() {
+        SerialPortX port = serialPort;
+        long rx = port == null ? 0 : port.getRxCount();
+        long tx = port == null ? 0 : port.getTxCount();
+        // counters start over when the port is opened again
+        AttributedString line = calculateStatusLine(Math.max(0, rx - lastRxCount) * 1000 / STATUS_INTERVAL,
+                Math.max(0, tx - lastTxCount) * 1000 / STATUS_INTERVAL);
+        lastRxCount = rx;
+        lastTxCount = tx;
+        if (!line.toString().equals(statusLine.toString())) {
+            statusLine = line;
+            setDirty();
+        }
+    }
 
-    private AttributedString calculateStatusLine() {
+    private AttributedString calculateStatusLine(long rxRate, long txRate) {
         AttributedStringBuilder sb = new AttributedStringBuilder();
         sb.style(AttributedStyle.INVERSE);
         /*
@@ -449,13 +544,18 @@ public class App {
             sb.append("xxxx");
         } else {
             sb.append("CTS ");
-            sb.append(serialPort.isCTSX() ? "on  " : "off ");
+            sb.append(serialPort.isCts() ? "on  " : "off ");
             sb.append("DSR ");
-            sb.append(serialPort.isDSRX() ? "on  " : "off ");
+            sb.append(serialPort.isDsr() ? "on  " : "off ");
             sb.append("RTS ");
             sb.append(serialPort.isRts() ? "on  " : "off ");
             sb.append("DTR ");
             sb.append(serialPort.isDtr() ? "on" : "off");
+            sb.append(" | RX " + rxRate + " B/s TX " + txRate + " B/s");
+            String active = AbstractCommandExecutor.describeActive();
+            if (active != null) {
+                sb.append(" | " + active);
+            }
         }
         sb.style(AttributedStyle.DEFAULT);
         return sb.toAttributedString();
@@ -523,6 +623,10 @@ public class App {
                 // disconnected device
                 try {
                     console.writer().println(ex.getMessage());
+                    String incomplete = FileUploadCommandExecutor.describeIncomplete();
+                    if (incomplete != null) {
+                        console.writer().println(incomplete + ", --resume after reconnect to continue");
+                    }
                     reader.readLine("press ENTER to try again ... ");
                 } catch (UserInterruptException ue) {
                     // ^C when in open/reopen loop
@@ -541,35 +645,24 @@ public class App {
         }
     }
 
-    private String timedDrain(int timeout) {
-        String prompt;
-        String lastNotNull = null;
-        long start = System.currentTimeMillis();
-        long remainder = timeout;
-        while (remainder > 0) {
-            try {
-                prompt = (String) promptQueue.poll(remainder, TimeUnit.MILLISECONDS);
-                if (prompt != null) {
-                    lastNotNull = prompt;
-                }
-            } catch (InterruptedException ex) {
-                console.writer().println("Interrupted in poll: " + ex);
-            }
-            long elapsed = System.currentTimeMillis() - start;
-            remainder = timeout - elapsed;
-        }
-        return lastNotNull;
-    }
-
-    private String waitForPrompt(int timeout, int drainPeriod) {
-        String prompt = "";
+    /**
+     * Wait for the prompt after input sent to the esp. Returns as soon as it
+     * is there, prompts queued behind it belong to the same input and win.
+     *
+     * @return the prompt, null if none came within timeout ms
+     */
+    private String waitForPrompt(int timeout) {
+        String prompt = null;
         try {
             prompt = (String) promptQueue.poll(timeout, TimeUnit.MILLISECONDS);
         } catch (InterruptedException ex) {
             console.writer().println("interrupted " + ex);
         }
-        String drainPrompt = timedDrain(drainPeriod);
-        return drainPrompt != null ? drainPrompt : prompt;
+        String next;
+        while ((next = (String) promptQueue.poll()) != null) {
+            prompt = next;
+        }
+        return prompt;
     }
 
     private void repl() {
@@ -578,16 +671,17 @@ public class App {
             String line;
             prompt = "press ENTER to sync ... ";
             line = reader.readLine(prompt);
+            promptQueue.clear();
             serialPort.writeStringX(line + "\n");
-            prompt = timedDrain(100);
+            prompt = waitForPrompt(100);
             if (prompt == null) {
                 continue;
             }
             if (prompt.equals(">> ")) {
                 console.writer().println("aborting >> prompt");
                 serialPort.writeStringX("x\n");
-                prompt = timedDrain(200);
-                if (prompt.equals("> ")) {
+                prompt = waitForPrompt(200);
+                if ("> ".equals(prompt)) {
                     state = State.REPL;
                 }
             } else {
@@ -596,13 +690,16 @@ public class App {
         }
 
         // turn echo off
+        promptQueue.clear();
         serialPort.writeStringX("uart.setup(0," + baud + ",8, 0, 1, " + echo + ")\n");
-        prompt = timedDrain(25);
+        prompt = waitForPrompt(2000);
 
         while (true) {
             String line;
             try {
                 line = reader.readLine(prompt);
+                // late prompts of the previous input must not end this one
+                promptQueue.clear();
                 if (line.startsWith("--")) { // abuse lua comment as internal command prefix
                     try {
                         processCommand(line);
@@ -613,68 +710,50 @@ public class App {
                 } else {
                     serialPort.writeStringX(line + "\r\n");
                 }
-                prompt = waitForPrompt(2000, 25);
+                prompt = waitForPrompt(2000);
             } catch (UserInterruptException e) {
                 // can do someting good here
             }
         }
     }
 
-    private class InteractiveSerialPortSink implements SerialPortEventListenerX {
+    private class InteractiveSerialPortSink implements SerialPortEventListenerX, ReplLineParser.Listener {
 
-        private final StringBuilder lineBuffer = new StringBuilder(1024);
+        private final byte[] rxBuffer = new byte[4096];
+        private final ReplLineParser parser = new ReplLineParser(this, MARKER);
 
         @Override
         public boolean serialEvent(SerialPortEvent event) {
             if (!event.isRXCHAR() || event.getEventValue() <= 0) {
                 return false;
             }
-            String data = serialPort.readStringX(event.getEventValue());
-            lineBuffer.append(data);
-            dump("dd ", data);
-            dump("lb", lineBuffer.toString());
-            String[] lines = lineBuffer.toString().split("\r\n", -1);
-            String line;
-            // process all but last line
-            for (int idx = 0; idx < lines.length - 1; idx++) {
-                line = lines[idx];
-                dump("l" + idx, line);
-                // ignore all prompts followed by a new line
-                if (!line.equals("> ") && !line.equals(">> ")) {
-                    if (line.equals(MARKER)) {
-                        state = State.REPL;
-                    } else {
-                        console.writer().println(line);
-                        console.flush();
-                    }
-                }
-            }
-            // deal with the last one
-            line = lines[lines.length - 1];
-            dump("ll", line);
-            // input ends with new line
-            if (line.length() == 0) {
-                lineBuffer.setLength(0);
-                return true;
+            int n;
+            while ((n = serialPort.readBytesX(rxBuffer, 0, rxBuffer.length)) > 0) {
+                parser.feed(rxBuffer, 0, n);
             }
-            // from here, only not empty last line, not followed with newline
-            if (line.startsWith("> ") || line.startsWith(">> ")) {
-                if (state != State.WAIT_FOR_MARKER) {
-                    try {
-                        promptQueue.put(line);
-                    } catch (InterruptedException ex) {
-                        console.writer().println("interrupted in put");
-                    }
-                }
-                lineBuffer.setLength(0);
-            } else {
-                if (lines.length > 1) {
-                    // shift the remainder
-                    lineBuffer.setLength(0);
-                    lineBuffer.append(line);
+            return true;
+        }
+
+        @Override
+        public void line(String line) {
+            console.writer().println(line);
+            console.flush();
+        }
+
+        @Override
+        public void marker() {
+            state = State.REPL;
+        }
+
+        @Override
+        public void prompt(String prompt) {
+            if (state != State.WAIT_FOR_MARKER) {
+                try {
+                    promptQueue.put(prompt);
+                } catch (InterruptedException ex) {
+                    console.writer().println("interrupted in put");
                 }
             }
-            return true;
         }
     }
 
@@ -692,23 +771,57 @@ public class App {
             HexDumpCommandExecutor ce = new HexDumpCommandExecutor(command);
             ce.setWriter(console.writer());
             ce.start();
-        } else if (command.equals("--ls")) {
+        } else if (command.equals("--ls") && !Agent.isActive()) {
             processLsCommand(command);
+        } else if (command.equals("--ls") || command.startsWith("--rm") || command.startsWith("--eval")) {
+            AgentRequestCommandExecutor ce = new AgentRequestCommandExecutor(command);
+            ce.setWriter(console.writer());
+            ce.start();
+        } else if (command.startsWith("--agent")) {
+            AgentCommandExecutor ce = new AgentCommandExecutor(command);
+            ce.setWriter(console.writer());
+            ce.start();
         } else if (command.startsWith("--cat")) {
-            processCatCommand(command);
+            CatCommandExecutor ce = new CatCommandExecutor(command);
+            ce.setWriter(console.writer());
+            ce.start();
         } else if (command.startsWith("--upload")) {
             FileUploadCommandExecutor ce = new FileUploadCommandExecutor(command);
+            startUpload(ce);
+        } else if (command.startsWith("--download")) {
+            DownloadCommandExecutor ce = new DownloadCommandExecutor(command);
+            ce.setWriter(console.writer());
+            ce.start();
+        } else if (command.equals("--resume")) {
+            FileUploadCommandExecutor ce = FileUploadCommandExecutor.forResume();
             ce.setWriter(console.writer());
             ce.start();
         } else if (command.startsWith("--save")) {
             TextFileUploadCommandExecutor ce = new TextFileUploadCommandExecutor(command);
-            ce.setWriter(console.writer());
             ce.setAutoRun(autorun);
-            ce.start();
+            startUpload(ce);
         } else if (command.startsWith("--tsave")) {
             TurboTextFileUploadCommandExecutor ce = new TurboTextFileUploadCommandExecutor(command);
-            ce.setWriter(console.writer());
             ce.setAutoRun(autorun);
+            startUpload(ce);
+        } else if (command.startsWith("--tupload")) {
+            TurboFileUploadCommandExecutor ce = new TurboFileUploadCommandExecutor(command);
+            startUpload(ce);
+        } else if (command.startsWith("--zupload")) {
+            TurboFileUploadCommandExecutor ce = new TurboFileUploadCommandExecutor(command);
+            ce.setCompressed(true);
+            startUpload(ce);
+        } else if (command.startsWith("--sync")) {
+            SyncCommandExecutor ce = new SyncCommandExecutor(command);
+            ce.setWriter(console.writer());
+            ce.start();
+        } else if (command.equals("--paste")) {
+            String text = pendingPaste.getAndSet(null);
+            if (text == null) {
+                throw new InvalidCommandException("nothing pasted");
+            }
+            PasteCommandExecutor ce = new PasteCommandExecutor(text);
+            ce.setWriter(console.writer());
             ce.start();
         } else if (command.equals("--globals")) {
             serialPort.writeStringX("for k,v in pairs(_G) do print(k,v) end\n");
@@ -721,6 +834,12 @@ public class App {
         }
     }
 
+    private void startUpload(AbstractFileUploadCommandExecutor upload) throws InvalidCommandException {
+        CommandExecutor ce = skipUnchanged ? new SkipUnchangedCommandExecutor(upload) : upload;
+        ce.setWriter(console.writer());
+        ce.start();
+    }
+
     private void processLsCommand(String command) throws InvalidCommandException {
         String cmd = ""
                 + "_dir=function()\n"
@@ -759,12 +878,26 @@ public class App {
 
     private void processSetCommand(String command) throws InvalidCommandException {
         String args[] = command.split("\\s+");
-        if (args.length != 2) {
-            throw new InvalidCommandException("set/reset requires exactly one parameter");
+        if (args.length < 2) {
+            throw new InvalidCommandException("set/reset requires a parameter");
         }
         boolean isSet = args[0].equals("--set");
-        if (args[1].equals("autorun")) {
+        if (args[1].equals("window")) {
+            uploadWindow = isSet ? parseSetValue(args, 1, 16) : DEFAULT_UPLOAD_WINDOW;
+        } else if (args[1].equals("fps")) {
+            maxFps = isSet ? parseSetValue(args, 1, 120) : DEFAULT_MAX_FPS;
+        } else if (args[1].equals("rxbatch")) {
+            rxBatch = isSet ? parseSetValue(args, 1, 4096) : SerialPortX.DEFAULT_RX_BATCH;
+            serialPort.setRxCoalescing(rxBatch, rxLatency);
+        } else if (args[1].equals("rxlatency")) {
+            rxLatency = isSet ? parseSetValue(args, 0, 100) : SerialPortX.DEFAULT_RX_LATENCY;
+            serialPort.setRxCoalescing(rxBatch, rxLatency);
+        } else if (args.length != 2) {
+            throw new InvalidCommandException("set/reset requires exactly one parameter");
+        } else if (args[1].equals("autorun")) {
             autorun = isSet;
+        } else if (args[1].equals("skipunchanged")) {
+            skipUnchanged = isSet;
         } else {
             throw new InvalidCommandException("unrecognize set/reset argument: " + args[1]);
         }
@@ -775,28 +908,19 @@ public class App {
         }
     }
 
-    private void processCatCommand(String command) throws InvalidCommandException {
-        String args[];
-        args = command.split("\\s+");
-        if (args.length != 2) {
-            throw new InvalidCommandException("expect exactly one parameter to --cat");
+    private int parseSetValue(String[] args, int min, int max) throws InvalidCommandException {
+        if (args.length != 3) {
+            throw new InvalidCommandException("--set " + args[1] + " requires a value");
+        }
+        try {
+            int val = Integer.parseInt(args[2]);
+            if (val < min || val > max) {
+                throw new InvalidCommandException(args[1] + " must be between " + min + " and " + max);
+            }
+            return val;
+        } catch (NumberFormatException ex) {
+            throw new InvalidCommandException("unable to interpret " + args[1] + " value: " + args[2]);
         }
-        String cmd = ""
-                + "_view=function()\n"
-                + "  local _line, _f\n"
-                + "  _f=file.open('" + args[1] + "','r')\n"
-                + "  repeat _line = _f:readline()\n"
-                + "    if (_line ~= nil) then\n"
-                + "      print(_line:sub(1,-2))\n"
-                + "    end\n"
-                + "  until _line == nil\n"
-                + "  _f:close()\n"
-                + "end\n"
-                + "_view()\n"
-                + "_view=nil\n"
-                + "print('~~~'..'END'..'~~~')\n";
-        state = State.WAIT_FOR_MARKER;
-        serialPort.writeStringX(cmd);
     }
 
     private void processDtrCommand(String command) throws InvalidCommandException {
@@ -836,11 +960,17 @@ public class App {
             }
         }
         console.writer().println("About to open port " + serialPortDevice + ", baud " + baud + ", 8N1");
+        AbstractCommandExecutor.reset();
         serialPort = new SerialPortX(serialPortDevice);
         serialPort.openPortX();
         serialPort.setParamsX(baud, SerialPort.DATABITS_8,
                 SerialPort.STOPBITS_1, SerialPort.PARITY_NONE, false, false);
+        serialPort.setRxCoalescing(rxBatch, rxLatency);
         serialPort.installCommonEventListener(new CommonEventListener());
+        serialPort.installFailureListener(ex -> {
+            console.writer().println("serial listener failed: " + ex.getMessage());
+            console.flush();
+        });
         serialPort.pushEventListener(new InteractiveSerialPortSink());
     }
 
@@ -888,14 +1018,4 @@ public class App {
             return false;
         }
     }
-
-    private void dump(String p, String s) {
-        if (false) {
-            console.writer().print(p + " ");
-            for (int i = 0; i < s.length(); i++) {
-                console.writer().print(String.format("%02X ", (int) s.charAt(i)));
-            }
-            console.writer().println();
-        }
-    }
 }
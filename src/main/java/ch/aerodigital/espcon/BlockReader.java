@@ -0,0 +1,218 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.util.ArrayList;
+
+/**
+ * Raw file content from the esp in framed blocks.
+ *
+ * The lua helper _bk(name,offset,length) writes every block read from the
+ * file as ~~~BLK~~~, the block size in two bytes (big endian) and the bytes
+ * as they are. A block of size 0 ends the transfer. ~~~BLK-ERROR~~~,
+ * followed by the reason if there is one, is printed if the file can not be
+ * opened. Nothing is formatted or escaped on the esp, the host does it.
+ *
+ * After a complete transfer the prompt is left in the port. Errors are
+ * reported once the prompt is there, it is consumed. Only a prompt at the
+ * start of a line counts, "> " printed by lua before the first block is
+ * text.
+ *
+ * Blocks are taken from the port as they arrive, the marker is searched
+ * only between blocks.
+ *
+ * @author Pawel Jasinski
+ */
+public class BlockReader implements MarkerMatcher.Listener {
+
+    public interface Listener {
+
+        /**
+         * Valid only during the call.
+         */
+        void block(byte[] data, int off, int len);
+
+        /**
+         * @param error null if the transfer is complete, otherwise what went
+         * wrong and the prompt has been taken
+         */
+        void end(String error);
+    }
+
+    public static final int BLOCK_SIZE = 1024;
+
+    private static final int START = 0;
+    private static final int ERROR = 1;
+    private static final int PROMPT = 2;
+
+    private enum State {
+        MARKER,
+        SIZE,
+        DATA,
+        END,
+    }
+
+    private final Listener listener;
+    private final MarkerMatcher matcher;
+    private final byte[] scratch = new byte[BLOCK_SIZE + 16];
+    private State state = State.MARKER;
+    private int size;
+    private int sizeBytes;
+    private long received;
+    private boolean failed;
+    private final StringBuilder outside = new StringBuilder();
+    private final StringBuilder line = new StringBuilder(); // up to a "> " inside it
+
+    public BlockReader(Listener listener) {
+        this.listener = listener;
+        matcher = new MarkerMatcher(this, "~~~BLK~~~", "~~~BLK-ERROR~~~", "> ");
+    }
+
+    public static String lua() {
+        return ""
+                + "_bk=function(n,o,l)\n"
+                + "  local f=file.open(n,'r')\n"
+                + "  if not f then\n"
+                + "    print('~~~BLK-'..'ERROR~~~')\n"
+                + "    return\n"
+                + "  end\n"
+                + "  local h='~~~BLK'..'~~~'\n"
+                + "  f:seek('set',o)\n"
+                + "  while l>0 do\n"
+                + "    local b=f:read(l<" + BLOCK_SIZE + " and l or " + BLOCK_SIZE + ")\n"
+                + "    if not b then break end\n"
+                + "    uart.write(0,h,string.char(bit.rshift(#b,8),bit.band(#b,255)),b)\n"
+                + "    l=l-#b\n"
+                + "    tmr.wdclr()\n"
+                + "  end\n"
+                + "  f:close()\n"
+                + "  uart.write(0,h,'\\0\\0')\n"
+                + "end\n";
+    }
+
+    /**
+     * @param file on the esp
+     * @param offset first byte
+     * @param length number of bytes, -1 for all up to the end of the file
+     * @return lua line calling and dropping the helper, or asking the agent
+     */
+    public static String call(String file, long offset, long length) {
+        if (Agent.isActive()) {
+            return Agent.read(file, offset, length);
+        }
+        return "_bk('" + file + "'," + offset + "," + (length < 0 ? Integer.MAX_VALUE : length) + ") _bk=nil";
+    }
+
+    /**
+     * @return lua lines defining the helper unless the agent has it, and
+     * the call
+     */
+    public static ArrayList<String> request(String file, long offset, long length) {
+        ArrayList<String> lines = Agent.isActive() ? new ArrayList<>() : LuaPacker.pack(lua());
+        lines.add(call(file, offset, length));
+        return lines;
+    }
+
+    /**
+     * @return text received before the first block, e.g. printed by lua
+     */
+    public String getOutside() {
+        return outside.toString();
+    }
+
+    /**
+     * @return bytes received so far
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Take what the port has buffered. After the end the rest, e.g. the
+     * prompt, is left in the port.
+     *
+     * @return false once the transfer ended
+     */
+    public boolean feed(SerialPortX port) {
+        int n;
+        while (state != State.END && (n = port.peekBytesX(scratch, 0, scratch.length)) > 0) {
+            port.skipBytesX(feed(scratch, 0, n));
+        }
+        return state != State.END;
+    }
+
+    /**
+     * @return number of bytes consumed, less than len only after the end
+     */
+    public int feed(byte[] data, int off, int len) {
+        int i = off;
+        while (i < off + len && state != State.END) {
+            switch (state) {
+                case MARKER:
+                    i += matcher.feed(data, i, off + len - i);
+                    break;
+                case SIZE:
+                    size = size << 8 | data[i++] & 0xFF;
+                    if (++sizeBytes == 2) {
+                        if (size == 0) {
+                            state = State.END;
+                            listener.end(null);
+                        } else {
+                            state = State.DATA;
+                        }
+                    }
+                    break;
+                case DATA:
+                    int n = Math.min(size, off + len - i);
+                    received += n;
+                    listener.block(data, i, n);
+                    i += n;
+                    size -= n;
+                    if (size == 0) {
+                        state = State.MARKER;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return i - off;
+    }
+
+    @Override
+    public boolean marker(int marker) {
+        switch (marker) {
+            case START:
+                if (received == 0) {
+                    outside.append(line).append(matcher.text());
+                }
+                line.setLength(0);
+                state = State.SIZE;
+                size = 0;
+                sizeBytes = 0;
+                break;
+            case ERROR:
+                failed = true;
+                line.setLength(0);
+                return true; // the reason is up to the prompt
+            case PROMPT:
+                line.append(matcher.text());
+                if (line.length() > 0 && line.charAt(line.length() - 1) != '\n') {
+                    line.append("> ");
+                    return true;
+                }
+                // the call is over without the end block
+                state = State.END;
+                String text = line.toString().trim();
+                if (text.isEmpty()) {
+                    text = failed ? "unable to open the file" : "transfer incomplete";
+                }
+                listener.end(text);
+                break;
+            default:
+                break;
+        }
+        return false;
+    }
+}
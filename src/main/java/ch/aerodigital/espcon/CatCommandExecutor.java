@@ -0,0 +1,193 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import static ch.aerodigital.espcon.App.serialPort;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import jssc.SerialPortEvent;
+
+/**
+ * Shows a file of the esp, or copies it into a local file without showing
+ * it. The esp sends raw blocks (see BlockReader), the text is decoded here.
+ *
+ * @author Pawel Jasinski
+ */
+public class CatCommandExecutor extends AbstractCommandExecutor {
+
+    private final String filename;
+    private final String target; // null for the console
+
+    private enum State {
+        IDLE,
+        LUA_TRANSFER,
+        CAT_TRANSFER,
+    }
+    private State state;
+    private ArrayList<String> sendBuffer;
+    private int sendIndex;
+    private FileChannel channel;
+    private String writeError;
+    private final ByteBuffer in = ByteBuffer.allocate(BlockReader.BLOCK_SIZE + 16);
+    private final CharBuffer out = CharBuffer.allocate(BlockReader.BLOCK_SIZE + 16);
+    private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    public CatCommandExecutor(String command) throws InvalidCommandException {
+        String args[] = command.split("\\s+");
+        if (args.length < 2 || args.length > 3) {
+            throw new InvalidCommandException("cat needs a file name, optionally a local file to write to");
+        }
+        filename = args[1];
+        target = args.length == 3 ? args[2] : null;
+        state = State.IDLE;
+    }
+
+    @Override
+    public void start() throws InvalidCommandException {
+        if (target != null) {
+            try {
+                channel = FileChannel.open(Paths.get(target), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch (IOException ex) {
+                throw new InvalidCommandException("Unable to open: " + target);
+            }
+        }
+        sendBuffer = BlockReader.request(filename, 0, -1);
+        listen(new SerialPortSink());
+        sendIndex = 0;
+        state = State.LUA_TRANSFER;
+        sendNext();
+    }
+
+    private void sendNext() {
+        serialPort.writeStringX(sendBuffer.get(sendIndex) + "\n");
+        sendIndex++;
+        if (sendIndex == sendBuffer.size()) {
+            state = State.CAT_TRANSFER;
+        }
+    }
+
+    private void save(byte[] data, int off, int len) {
+        if (writeError != null) {
+            return;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            writeError = "unable to write " + target + ": " + ex.getMessage();
+        }
+    }
+
+    private void show(byte[] data, int off, int len) {
+        while (len > 0) {
+            int n = Math.min(len, in.remaining());
+            in.put(data, off, n);
+            off += n;
+            len -= n;
+            decode(false);
+        }
+        writer.flush();
+    }
+
+    /**
+     * A character split between blocks waits for the rest, unless it is the
+     * last one.
+     */
+    private void decode(boolean last) {
+        in.flip();
+        CoderResult result;
+        do {
+            result = decoder.decode(in, out, last);
+            out.flip();
+            writer.append(out);
+            out.clear();
+        } while (result.isOverflow());
+        in.compact();
+    }
+
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener, BlockReader.Listener {
+
+        private final MarkerMatcher matcher;
+        private final BlockReader blocks;
+
+        public SerialPortSink() {
+            matcher = new MarkerMatcher(this, "> ");
+            blocks = new BlockReader(this);
+        }
+
+        @Override
+        public boolean serialEvent(SerialPortEvent event) {
+            if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+                return false;
+            }
+            if (state == State.LUA_TRANSFER) {
+                matcher.feed(serialPort);
+            }
+            if (state == State.CAT_TRANSFER) {
+                blocks.feed(serialPort);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean marker(int marker) {
+            if (state != State.LUA_TRANSFER) {
+                writer.println("unexpected data: " + matcher.text());
+                return true;
+            }
+            sendNext();
+            // with the call sent, everything is for the block reader
+            return state == State.LUA_TRANSFER;
+        }
+
+        @Override
+        public void block(byte[] data, int off, int len) {
+            if (channel != null) {
+                save(data, off, len);
+            } else {
+                show(data, off, len);
+            }
+        }
+
+        @Override
+        public void end(String error) {
+            state = State.IDLE;
+            if (channel != null) {
+                Util.close(channel);
+                if (error == null) {
+                    error = writeError;
+                }
+                if (error == null) {
+                    writer.println(filename + " -> " + target + ", " + blocks.getReceived() + " bytes");
+                }
+            } else {
+                decode(true);
+            }
+            if (error != null) {
+                writer.println("cat " + filename + ": " + error);
+                writer.flush();
+                // an error after the end block leaves the prompt
+                finish(false);
+                return;
+            }
+            writer.flush();
+            // the prompt follows, no need to ask for one
+            stopListening();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+/**
+ *
+ * @author Pawel Jasinski
+ */
+public interface CommandCompletionListener {
+
+    /**
+     * Called from the serial event thread once the executor removed its sink.
+     *
+     * @param success false if the command did not do what it was asked for
+     */
+    public void completed(boolean success);
+}
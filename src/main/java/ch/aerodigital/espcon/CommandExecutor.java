@@ -17,4 +17,6 @@ public interface CommandExecutor {
 
     public void setWriter(PrintWriter writer);
 
+    public void setCompletionListener(CommandCompletionListener listener);
+
 }
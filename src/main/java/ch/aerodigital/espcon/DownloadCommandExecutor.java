@@ -0,0 +1,239 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import static ch.aerodigital.espcon.App.serialPort;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import jssc.SerialPortEvent;
+
+/**
+ * Copies a file from the esp to a local file, byte exact.
+ *
+ * The size and hash of the esp file are asked for first (see RemoteHash),
+ * then the content comes in raw blocks (see BlockReader) which go straight
+ * into a FileChannel and into the checksums. The download is written next
+ * to the target as .part and replaces the target only when size and hash
+ * match. There is no check per block, a damaged block fails the whole
+ * download.
+ *
+ * @author Pawel Jasinski
+ */
+public class DownloadCommandExecutor extends AbstractCommandExecutor {
+
+    private final String remote;
+    private final Path local;
+    private final Path part;
+
+    private enum State {
+        IDLE,
+        LUA_TRANSFER,
+        WAIT_HASH,
+        WAIT_HASH_PROMPT,
+        DOWNLOAD,
+    }
+    private State state;
+    private ArrayList<String> luaCodeBuffer;
+    private int sendIndex;
+    private RemoteHash hash;
+    private FileChannel channel;
+    private String writeError;
+    private long startTime;
+    private final CRC32 crc = new CRC32();
+    private final MessageDigest sha1;
+
+    public DownloadCommandExecutor(String command) throws InvalidCommandException {
+        String args[] = command.split("\\s+");
+        if (args.length < 2 || args.length > 3) {
+            throw new InvalidCommandException("download needs remote and optionally local file name");
+        }
+        remote = args[1];
+        local = Paths.get(args.length == 3 ? args[2] : Paths.get(remote).getFileName().toString());
+        part = local.resolveSibling(local.getFileName() + ".part");
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        state = State.IDLE;
+    }
+
+    @Override
+    public void start() throws InvalidCommandException {
+        if (Files.isDirectory(local)) {
+            throw new InvalidCommandException(local + " is a directory");
+        }
+        try {
+            channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException ex) {
+            throw new InvalidCommandException("Unable to open: " + part);
+        }
+        startTime = System.currentTimeMillis();
+        // the read helper goes along with the hash request
+        luaCodeBuffer = Agent.isActive() ? new ArrayList<>() : LuaPacker.pack(BlockReader.lua());
+        luaCodeBuffer.addAll(RemoteHash.request(remote, -1));
+        listen(new SerialPortSink());
+        sendIndex = 0;
+        state = State.LUA_TRANSFER;
+        sendNext();
+    }
+
+    private void sendNext() {
+        serialPort.writeStringX(luaCodeBuffer.get(sendIndex) + "\n");
+        sendIndex++;
+        if (sendIndex == luaCodeBuffer.size()) {
+            state = State.WAIT_HASH;
+        }
+    }
+
+    private void write(byte[] data, int off, int len) {
+        crc.update(data, off, len);
+        sha1.update(data, off, len);
+        if (writeError != null) {
+            return; // the esp keeps sending, nothing to do but to wait for the end
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            writeError = "unable to write " + part + ": " + ex.getMessage();
+        }
+    }
+
+    /**
+     * @return null if the download is complete and in place, otherwise what
+     * went wrong
+     */
+    private String complete(long received) {
+        Util.close(channel);
+        if (writeError != null) {
+            return writeError;
+        }
+        if (received != hash.getSize()) {
+            return "got " + received + " of " + hash.getSize() + " bytes";
+        }
+        if (!hash.matches(crc, sha1)) {
+            return "content differs from the esp file";
+        }
+        try {
+            Files.move(part, local, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            return ex.getMessage();
+        }
+        return null;
+    }
+
+    private void fail(String error) {
+        Util.close(channel);
+        try {
+            Files.deleteIfExists(part);
+        } catch (IOException ex) {
+            // left behind
+        }
+        writer.println("download " + remote + ": " + error);
+        writer.flush();
+        state = State.IDLE;
+        // the helper is still there if the download never started
+        finish(false, "_bk=nil");
+    }
+
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener, BlockReader.Listener {
+
+        private static final int PROMPT = 0;
+        private static final int HASH_START = 1;
+        private static final int HASH_END = 2;
+        private final MarkerMatcher matcher;
+        private final BlockReader blocks;
+
+        public SerialPortSink() {
+            matcher = new MarkerMatcher(this, "> ", RemoteHash.START_MARKER, RemoteHash.END_MARKER);
+            blocks = new BlockReader(this);
+        }
+
+        @Override
+        public boolean serialEvent(SerialPortEvent event) {
+            if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+                return false;
+            }
+            if (state != State.DOWNLOAD) {
+                matcher.feed(serialPort);
+            }
+            if (state == State.DOWNLOAD) {
+                blocks.feed(serialPort);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean marker(int marker) {
+            switch (state) {
+                case IDLE:
+                    writer.println("unexpected data when in idle: " + matcher.text());
+                    break;
+                case LUA_TRANSFER:
+                    if (marker == PROMPT) {
+                        sendNext();
+                    }
+                    break;
+                case WAIT_HASH:
+                    if (marker == HASH_END) {
+                        hash = RemoteHash.parse(matcher.text());
+                        state = State.WAIT_HASH_PROMPT;
+                    }
+                    break;
+                case WAIT_HASH_PROMPT:
+                    if (hash.getSize() < 0) {
+                        fail("no such file");
+                        return false;
+                    }
+                    setProgress(0, hash.getSize());
+                    state = State.DOWNLOAD;
+                    serialPort.writeStringX(BlockReader.call(remote, 0, -1) + "\n");
+                    return false;
+                default:
+                    break;
+            }
+            return true;
+        }
+
+        @Override
+        public void block(byte[] data, int off, int len) {
+            write(data, off, len);
+            setProgress(blocks.getReceived(), hash.getSize());
+        }
+
+        @Override
+        public void end(String error) {
+            if (error != null) {
+                fail(error);
+                return;
+            }
+            String failure = complete(blocks.getReceived());
+            if (failure != null) {
+                // the prompt is on its way, the extra one does no harm
+                fail(failure);
+                return;
+            }
+            long ms = System.currentTimeMillis() - startTime;
+            writer.println(remote + " -> " + local + ", " + blocks.getReceived() + " bytes, " + ms + " ms");
+            writer.flush();
+            state = State.IDLE;
+            // the prompt follows, no need to ask for one
+            stopListening();
+        }
+    }
+}
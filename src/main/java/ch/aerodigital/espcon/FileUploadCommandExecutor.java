@@ -4,146 +4,635 @@
 package ch.aerodigital.espcon;
 
 import static ch.aerodigital.espcon.App.serialPort;
+import static ch.aerodigital.espcon.App.uploadWindow;
 import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
 import jssc.SerialPortEvent;
 
 /**
+ * Binary upload with a sliding window and selective retransmission.
+ *
+ * A frame on the wire is 2 bytes sequence number, 1 byte payload length, 4
+ * bytes CRC-32 of the header and payload, and the payload padded to the
+ * current packet size. The esp answers every frame, in the order received,
+ * with ack or nak. Packets arriving after a damaged one are kept on the esp
+ * until the gap is filled, so only the damaged packet is sent again. The
+ * target file stays open on the esp for the whole transfer.
+ *
+ * Length values above the packet size are control frames with 1 byte
+ * payload: END closes the file, RESIZE switches the esp to a new packet size.
+ * Both are sent only with nothing else in flight. Window and packet size are
+ * picked by LinkTuner, the window never exceeds uploadWindow.
+ *
+ * A lost or extra byte shifts the framing on the esp. A header which can not
+ * be right is answered with the next sequence the esp needs, and the host
+ * sends the resync sequence: 0xFF bytes enough to fill a whole frame at any
+ * offset, then one 0x00. The esp recognizes a frame of 0xFF only, skips up
+ * to the 0x00 and reports where it is. The host sends everything from there
+ * again. The same happens when no answer comes for ANSWER_TIMEOUT.
+ *
+ * An upload which did not complete (disconnect, abort) can be resumed: the
+ * esp reports size and hash of what it has, if it matches the beginning of
+ * the source the rest is appended, otherwise the upload starts over. The esp
+ * may still be in data mode, e.g. after a dropped cable, so the resync
+ * sequence goes first. If the upload handler answers it, END takes the esp
+ * back to the interpreter. Otherwise the interpreter got the sequence as
+ * garbage and an empty line gets a clean prompt.
  *
  * @author Pawel Jasinski
  */
-public class FileUploadCommandExecutor extends AbstractCommandExecutor {
-
-    private String src;
-    private String target;
+public class FileUploadCommandExecutor extends AbstractFileUploadCommandExecutor {
 
     private enum State {
         IDLE,
+        LEAVE_DATA_MODE,
+        QUERY_TRANSFER,
+        WAIT_HASH,
+        WAIT_QUERY_PROMPT,
         LUA_TRANSFER,
         FILE_TRANSFER,
         END,
         WAIT_FINAL_PROMPT
     }
 
-    private State state;
+    private volatile State state;
 
-    private static final int FILE_UPLOAD_PACKET_SIZE = 250;
+    // uart.on('data',n) takes at most 254 characters, header included
+    private static final int MAX_FRAME_SIZE = 254;
+    private static final int PACKET_HEADER_SIZE = 7;
+    private static final int MAX_PACKET_SIZE = MAX_FRAME_SIZE - PACKET_HEADER_SIZE;
+    private static final int CONTROL_END = 0xFF;
+    private static final int CONTROL_RESIZE = 0xFE;
+    private static final int MAX_RETRIES = 8;
+    private static final long ANSWER_TIMEOUT = 2000; // ms
+    private static final byte[] RESYNC = new byte[2 * MAX_FRAME_SIZE + 1];
+
+    static {
+        Arrays.fill(RESYNC, 0, RESYNC.length - 1, (byte) 0xFF);
+    }
+    private static final int FLUSH_INTERVAL = 4096; // bytes between flushes on esp
     private int sendIndex = 0;
     private ArrayList<String> luaCodeBuffer;
     private InputStream srcFileIs;
     private final byte[] fileReadBuffer;
-    private byte[] currentChunk;
 
-    private long nFullPackets;
-    private long lastPacketSize;
-    private long totalPackets;
-    private long regularPacketSize;
+    private LinkTuner tuner;
+    private int packetSize; // the one esp expects now
+    private boolean srcExhausted;
+    private boolean endSent;
+    private int nextSeq;
+    private int retransmissions;
+    private boolean aborted;
+    private boolean resyncing;
+    private int resyncs; // in a row, without getting back in sync
+    private long resyncSentAt;
+    private long lastAnswer;
+    private Timer watchdog;
+    private boolean resume;
+    private long offset; // bytes already on the esp when resuming
+    private long confirmedBytes;
+    private long srcLength;
+    private long startTime;
+    private RemoteHash remote;
+    // packets in the order they were sent, the esp answers in the same order
+    private final ArrayDeque<Packet> inFlight = new ArrayDeque<>();
 
-    public FileUploadCommandExecutor(String command) throws InvalidCommandException {
-        String args[] = command.split("\\s+");
-        if (args.length == 1 || args.length > 3) {
-            throw new InvalidCommandException("upload needs 1 or 2 arguments");
-        }
-        if (args.length == 2) {
-            src = args[1];
-            target = args[1];
-        } else {
-            src = args[1];
-            target = args[2];
+    // last upload which did not complete, candidate for --resume
+    private static FileUploadCommandExecutor incomplete;
+
+    private static class Packet {
+
+        final int seq;
+        final int control; // 0 for data
+        final byte[] payload;
+        int retries;
+        long sentAt;
+
+        Packet(int seq, int control, byte[] payload) {
+            this.seq = seq;
+            this.control = control;
+            this.payload = payload;
         }
-        fileReadBuffer = new byte[FILE_UPLOAD_PACKET_SIZE];
+    }
+
+    public FileUploadCommandExecutor(String command) throws InvalidCommandException {
+        super(command);
+        fileReadBuffer = new byte[MAX_PACKET_SIZE];
         state = State.IDLE;
     }
 
+    public FileUploadCommandExecutor(String src, String target) {
+        super(src, target);
+        fileReadBuffer = new byte[MAX_PACKET_SIZE];
+        state = State.IDLE;
+    }
+
+    /**
+     * @return executor continuing the last incomplete upload
+     * @throws InvalidCommandException if there is nothing to resume
+     */
+    public static FileUploadCommandExecutor forResume() throws InvalidCommandException {
+        if (incomplete == null) {
+            throw new InvalidCommandException("no incomplete upload to resume");
+        }
+        FileUploadCommandExecutor ce = new FileUploadCommandExecutor(incomplete.src, incomplete.target);
+        ce.resume = true;
+        return ce;
+    }
 
+    /**
+     * Nothing to resume for src any more, e.g. a temporary file which is
+     * gone.
+     */
+    public static void discardIncomplete(String src) {
+        if (incomplete != null && incomplete.src.equals(src)) {
+            incomplete = null;
+        }
+    }
+
+    /**
+     * @return description of the last incomplete upload, null if none
+     */
+    public static String describeIncomplete() {
+        if (incomplete == null) {
+            return null;
+        }
+        return "upload of " + incomplete.src + " incomplete, "
+                + (incomplete.offset + incomplete.confirmedBytes) + " bytes confirmed";
+    }
 
     @Override
     public void start() throws InvalidCommandException {
-        File srcFile = new File(src);
-        try {
-            srcFileIs = new BufferedInputStream(new FileInputStream(srcFile));
-        } catch (FileNotFoundException ex) {
+        if (!new File(src).isFile()) {
             throw new InvalidCommandException("Unable to open: " + src);
         }
+        incomplete = this;
+        offset = 0;
+        confirmedBytes = 0;
+        listen(new SerialPortSink());
+        if (resume) {
+            leaveDataMode();
+        } else {
+            try {
+                startUpload();
+            } catch (IOException ex) {
+                stopListening();
+                throw new InvalidCommandException("Unable to open: " + src);
+            }
+        }
+    }
+
+    private synchronized void leaveDataMode() {
+        luaCodeBuffer = RemoteHash.request(target, -1);
+        luaCodeBuffer.add(0, "_up=nil");
+        sendIndex = 0;
+        state = State.LEAVE_DATA_MODE;
+        startWatchdog(this::notInDataMode, ANSWER_TIMEOUT, 0);
+        serialPort.writeBytesX(RESYNC);
+    }
+
+    /**
+     * The upload handler answered the resync sequence.
+     */
+    private synchronized void inDataMode(int size) {
+        if (state != State.LEAVE_DATA_MODE || watchdog == null) {
+            return;
+        }
+        watchdog.cancel();
+        watchdog = null;
+        packetSize = size;
+        writer.println("esp was still receiving, closing " + target);
+        serialPort.writeBytesX(frame(new Packet(0, CONTROL_END, new byte[]{0})));
+    }
 
-        nFullPackets = srcFile.length() / FILE_UPLOAD_PACKET_SIZE;
-        lastPacketSize = srcFile.length() % FILE_UPLOAD_PACKET_SIZE;
-        totalPackets = nFullPackets + (lastPacketSize != 0 ? 1 : 0);
-        regularPacketSize = (totalPackets == 1 && lastPacketSize != 0) ? lastPacketSize : FILE_UPLOAD_PACKET_SIZE;
+    /**
+     * No answer, the interpreter got the resync sequence.
+     */
+    private synchronized void notInDataMode() {
+        if (state != State.LEAVE_DATA_MODE || watchdog == null) {
+            return;
+        }
+        watchdog = null;
+        state = State.QUERY_TRANSFER;
+        // the prompt for the empty line asks for the first query line
+        serialPort.writeStringX("\n");
+    }
+
+    /**
+     * Continue where the esp is, if it has a prefix of the source.
+     */
+    private void resumeUpload() {
+        boolean matches;
+        try (InputStream is = openContent()) {
+            matches = remote.matches(is);
+        } catch (IOException ex) {
+            matches = false;
+        }
+        if (matches) {
+            offset = remote.getSize();
+            writer.println("resuming " + target + " at " + offset);
+        } else if (remote.getSize() >= 0) {
+            writer.println(target + " on esp does not match " + src + ", starting over");
+        }
+        try {
+            startUpload();
+        } catch (IOException ex) {
+            writer.println("Unable to open: " + src);
+            finish(false);
+        }
+    }
+
+    private void startUpload() throws IOException {
+        srcLength = new File(src).length();
+        srcFileIs = new BufferedInputStream(new FileInputStream(src));
+        if (srcFileIs.skip(offset) != offset) {
+            Util.close(srcFileIs);
+            throw new IOException("unable to skip to " + offset);
+        }
+        tuner = new LinkTuner(uploadWindow, MAX_PACKET_SIZE);
+        packetSize = tuner.getPacketSize();
 
         String lua = ""
-                + "_up=function(n,l,ll)\n"
-                + "  local cs=0\n"
-                + "  local i=0\n"
-                + "  local f\n"
+                + "_up=function(l)\n"
+                + Util.luaCrc32()
+                + "  local s,k,d,r,h\n"
+                + "  local w=0\n"
+                + "  local e=0\n"
+                + "  local p={}\n"
+                + "  local f=file.open('" + target + "','" + (offset > 0 ? "a+" : "w+") + "')\n"
                 + "  print('>'..' ')\n"
-                + "  uart.on('data', l, function(b)\n"
-                + "    i=i+1\n"
-                + "    f=file.open('" + target + "','a+')\n"
-                + "    f:write(b)\n"
-                + "    f:close()\n"
-                + "    cs=0\n"
-                + "    for j=1,l do\n"
-                + "      cs=cs+(b:byte(j)*20)%19\n"
+                + "  h=function(b)\n"
+                + "    if b:find('^\\255+$') then\n"
+                + "      uart.on('data',1,function(c)\n"
+                + "        if c~='\\255' then\n"
+                + "          uart.on('data',l+" + PACKET_HEADER_SIZE + ",h,0)\n"
+                + "          uart.write(0,'~~~CRC-'..'START~~~'..e..':3:'..l..'~~~CRC-'..'END~~~')\n"
+                + "        end\n"
+                + "      end,0)\n"
+                + "      return\n"
+                + "    end\n"
+                + "    s=b:byte(1)*256+b:byte(2)\n"
+                + "    k=b:byte(3)\n"
+                + "    d=b:sub(" + (PACKET_HEADER_SIZE + 1) + "," + PACKET_HEADER_SIZE + "+(k>l and 1 or k))\n"
+                + "    r=crc(crc(crc(-1,b:byte(1)),b:byte(2)),k)\n"
+                + "    for j=1,#d do\n"
+                + "      r=crc(r,d:byte(j))\n"
                 + "    end\n"
-                + "    uart.write(0,'~~~CRC-'..'START~~~'..cs..'~~~CRC-'..'END~~~')\n"
-                + "    if i==n then\n"
+                + "    if bit.bnot(r)~=bit.bor(bit.lshift(b:byte(4),24),bit.lshift(b:byte(5),16),bit.lshift(b:byte(6),8),b:byte(7)) then\n"
+                + "      if (k<=l or k>=" + CONTROL_RESIZE + ") and (s-e+65536)%65536<32768 then\n"
+                + "        uart.write(0,'~~~CRC-'..'START~~~'..s..':0~~~CRC-'..'END~~~')\n"
+                + "      else\n"
+                + "        uart.write(0,'~~~CRC-'..'START~~~'..e..':2~~~CRC-'..'END~~~')\n"
+                + "      end\n"
+                + "      return\n"
+                + "    end\n"
+                + "    if k==" + CONTROL_END + " then\n"
+                + "      f:close()\n"
                 + "      uart.on('data')\n"
-                + "      print('~~~'..'END'..'~~~')\n"
+                + "    elseif k==" + CONTROL_RESIZE + " then\n"
+                + "      l=d:byte(1)\n"
+                + "      uart.on('data',l+" + PACKET_HEADER_SIZE + ",h,0)\n"
+                + "    elseif (s-e+65536)%65536<32768 and p[s]==nil then\n"
+                + "      p[s]=d\n"
+                + "      while p[e] do\n"
+                + "        f:write(p[e])\n"
+                + "        w=w+#p[e]\n"
+                + "        p[e]=nil\n"
+                + "        e=(e+1)%65536\n"
+                + "        if w>=" + FLUSH_INTERVAL + " then\n"
+                + "          f:flush()\n"
+                + "          w=0\n"
+                + "        end\n"
+                + "      end\n"
                 + "    end\n"
-                + "    if i==n-1 and ll>0 then\n"
-                + "      _up(1,ll,ll)\n"
+                + "    uart.write(0,'~~~CRC-'..'START~~~'..s..':1~~~CRC-'..'END~~~')\n"
+                + "    if k==" + CONTROL_END + " then\n"
+                + "      print('~~~'..'END'..'~~~')\n"
                 + "    end\n"
-                + "  end,0)\n"
-                + "end\n"
-                + "file.remove('" + target + "')\n";
-        luaCodeBuffer = Util.cmdPrep(lua);
-        luaCodeBuffer.add("_up(" + totalPackets + "," + regularPacketSize + "," + lastPacketSize + ")");
-        serialPort.pushEventListener(new SerialPortSink());
+                + "  end\n"
+                + "  uart.on('data',l+" + PACKET_HEADER_SIZE + ",h,0)\n"
+                + "end\n";
+        luaCodeBuffer = LuaPacker.pack(lua);
+        luaCodeBuffer.add("_up(" + packetSize + ")");
         sendIndex = 0;
+        nextSeq = 0;
+        retransmissions = 0;
+        srcExhausted = false;
+        endSent = false;
+        aborted = false;
+        resyncing = false;
+        resyncs = 0;
         state = State.LUA_TRANSFER;
-        sendNextPacket();
+        sendNextLuaLine();
     }
 
-    private void sendNextPacket() {
+    private void sendNextLuaLine() {
         if (sendIndex < luaCodeBuffer.size()) {
             serialPort.writeStringX(luaCodeBuffer.get(sendIndex) + "\r");
-        } else if ((sendIndex - luaCodeBuffer.size()) < totalPackets) {
-            state = State.FILE_TRANSFER;
-            try {
-                int size = srcFileIs.read(fileReadBuffer);
-                if (size != fileReadBuffer.length) {
-                    currentChunk = Arrays.copyOfRange(fileReadBuffer, 0, size);
-                } else {
-                    currentChunk = fileReadBuffer;
+            sendIndex++;
+            if (state == State.QUERY_TRANSFER && sendIndex == luaCodeBuffer.size()) {
+                state = State.WAIT_HASH;
+            }
+        } else {
+            startTransfer();
+        }
+    }
+
+    private synchronized void startTransfer() {
+        state = State.FILE_TRANSFER;
+        startTime = System.nanoTime();
+        lastAnswer = startTime;
+        startWatchdog(this::checkAnswers, ANSWER_TIMEOUT / 4, ANSWER_TIMEOUT / 4);
+        fillWindow();
+    }
+
+    /**
+     * Run check on the watchdog timer, once or every period ms. A port which
+     * is gone ends the upload, as it does when the sink writes.
+     */
+    private void startWatchdog(Runnable check, long delay, long period) {
+        watchdog = new Timer("upload-watchdog", true);
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    check.run();
+                } catch (SerialPortXException ex) {
+                    portGone(ex);
                 }
-                serialPort.writeBytesX(currentChunk);
-            } catch (IOException ex) {
-                writer.println("failed to read file chunk" + ex);
             }
+        };
+        if (period > 0) {
+            watchdog.schedule(task, delay, period);
         } else {
+            watchdog.schedule(task, delay);
+        }
+    }
+
+    private synchronized void portGone(SerialPortXException ex) {
+        if (watchdog != null) {
+            watchdog.cancel();
+        }
+        if (srcFileIs != null) {
+            Util.close(srcFileIs);
+        }
+        state = State.IDLE;
+        writer.println();
+        writer.println(ex.getMessage() + ", " + describeIncomplete() + ", --resume to continue");
+        writer.flush();
+        try {
+            finish(false);
+        } catch (SerialPortXException ex2) {
+            // the next input reports it
+        }
+    }
+
+    /**
+     * Send packets until the window is full, a control frame has to wait for
+     * the window to drain, or everything is sent.
+     */
+    private void fillWindow() {
+        while (!aborted && !endSent) {
+            if (tuner.getPacketSize() != packetSize) {
+                if (inFlight.isEmpty()) {
+                    send(new Packet(nextSeq, CONTROL_RESIZE, new byte[]{(byte) tuner.getPacketSize()}));
+                }
+                break;
+            }
+            if (srcExhausted) {
+                if (inFlight.isEmpty()) {
+                    sendEnd();
+                }
+                break;
+            }
+            if (inFlight.size() >= tuner.getWindow()) {
+                break;
+            }
+            int size;
             try {
-                srcFileIs.close();
+                size = srcFileIs.read(fileReadBuffer, 0, packetSize);
             } catch (IOException ex) {
-                writer.println("error when closing input " + ex);
+                writer.println("failed to read file chunk" + ex);
+                abort();
+                break;
             }
+            if (size <= 0) {
+                srcExhausted = true;
+                continue;
+            }
+            Packet packet = new Packet(nextSeq, 0, Arrays.copyOfRange(fileReadBuffer, 0, size));
+            nextSeq = (nextSeq + 1) & 0xFFFF;
+            send(packet);
+        }
+        if (inFlight.isEmpty() && endSent) {
+            Util.close(srcFileIs);
+            watchdog.cancel();
             state = State.END;
         }
-        sendIndex++;
     }
 
-    private class SerialPortSink implements SerialPortEventListenerX {
+    private void send(Packet packet) {
+        packet.sentAt = System.nanoTime();
+        inFlight.add(packet);
+        serialPort.writeBytesX(frame(packet));
+    }
 
-        private String dataCollector;
+    private void sendEnd() {
+        endSent = true;
+        send(new Packet(nextSeq, CONTROL_END, new byte[]{0}));
+    }
+
+    /**
+     * Stop the transfer, whatever is written so far stays on the esp.
+     */
+    private void abort() {
+        aborted = true;
+        // frames still in flight are answered before the esp sees this one
+        sendEnd();
+    }
+
+    private byte[] frame(Packet packet) {
+        if (PACKET_HEADER_SIZE + packetSize > MAX_FRAME_SIZE) {
+            throw new IllegalStateException("frame of " + (PACKET_HEADER_SIZE + packetSize) + " bytes");
+        }
+        byte[] frame = new byte[PACKET_HEADER_SIZE + packetSize];
+        frame[0] = (byte) (packet.seq >> 8);
+        frame[1] = (byte) packet.seq;
+        frame[2] = (byte) (packet.control != 0 ? packet.control : packet.payload.length);
+        System.arraycopy(packet.payload, 0, frame, PACKET_HEADER_SIZE, packet.payload.length);
+        // crc covers sequence, length and the real payload, not the padding
+        CRC32 crc32 = new CRC32();
+        crc32.update(frame, 0, 3);
+        crc32.update(packet.payload);
+        long crc = crc32.getValue();
+        frame[3] = (byte) (crc >> 24);
+        frame[4] = (byte) (crc >> 16);
+        frame[5] = (byte) (crc >> 8);
+        frame[6] = (byte) crc;
+        return frame;
+    }
+
+    /**
+     * @param answer sequence, 1 ack, 0 nak, 2 framing lost or 3 back in sync
+     * followed by the packet size
+     */
+    private synchronized void answer(String[] answer) {
+        if (state != State.FILE_TRANSFER) {
+            return;
+        }
+        lastAnswer = System.nanoTime();
+        int seq = Integer.parseInt(answer[0]);
+        switch (answer[1]) {
+            case "3":
+                resynced(seq, Integer.parseInt(answer[2]));
+                break;
+            case "2":
+                resync();
+                break;
+            default:
+                if (!resyncing) {
+                    // whatever comes before the esp is back in sync is noise
+                    acknowledge(seq, answer[1].equals("1"));
+                }
+                break;
+        }
+    }
+
+    private void resync() {
+        if (resyncing) {
+            return;
+        }
+        resyncing = true;
+        resyncSentAt = System.nanoTime();
+        writer.print("s");
+        writer.flush();
+        serialPort.writeBytesX(RESYNC);
+    }
+
+    /**
+     * The esp is in sync again, everything it did not confirm is sent once
+     * more. Packets before next are written, only their answer got lost.
+     */
+    private void resynced(int next, int size) {
+        if (!resyncing) {
+            return;
+        }
+        resyncing = false;
+        resyncs = 0;
+        packetSize = size;
+        ArrayList<Packet> pending = new ArrayList<>(inFlight);
+        inFlight.clear();
+        for (Packet packet : pending) {
+            if (packet.control == 0 && ((next - packet.seq) & 0xFFFF) < 32768 && packet.seq != next) {
+                confirmed(packet);
+            } else {
+                retransmissions++;
+                send(packet);
+            }
+        }
+        fillWindow();
+    }
+
+    /**
+     * Runs on the watchdog timer, the esp may have lost the framing without
+     * noticing: it waits for the rest of a frame which never comes.
+     */
+    private synchronized void checkAnswers() {
+        if (state != State.FILE_TRANSFER || (inFlight.isEmpty() && !resyncing)) {
+            return;
+        }
+        long since = resyncing ? resyncSentAt : Math.max(lastAnswer, inFlight.peek().sentAt);
+        if (System.nanoTime() - since < ANSWER_TIMEOUT * 1000000) {
+            return;
+        }
+        if (++resyncs > MAX_RETRIES) {
+            watchdog.cancel();
+            Util.close(srcFileIs);
+            aborted = true;
+            state = State.IDLE;
+            writer.println();
+            writer.println("esp does not answer, " + describeIncomplete() + ", --resume to continue");
+            finish(false);
+            return;
+        }
+        resyncing = false;
+        resync();
+    }
+
+    private synchronized void ended() {
+        inFlight.clear();
+        resyncing = false;
+        fillWindow();
+    }
+
+    private void confirmed(Packet packet) {
+        tuner.packetDone(true, System.nanoTime() - packet.sentAt);
+        confirmedBytes += packet.payload.length;
+        setProgress(offset + confirmedBytes, srcLength);
+        writer.print(".");
+    }
+
+    private void acknowledge(int seq, boolean ok) {
+        Packet packet = inFlight.peek();
+        if (packet == null || packet.seq != seq) {
+            // the esp answered something else than what was sent
+            resync();
+            return;
+        }
+        inFlight.poll();
+        if (ok) {
+            if (packet.control == 0) {
+                confirmed(packet);
+            } else if (packet.control == CONTROL_RESIZE) {
+                packetSize = packet.payload[0] & 0xFF;
+            }
+        } else if ((!aborted || packet.control != 0) && packet.retries++ < MAX_RETRIES) {
+            if (packet.control == 0) {
+                tuner.packetDone(false, System.nanoTime() - packet.sentAt);
+            }
+            writer.print("r");
+            retransmissions++;
+            send(packet);
+        } else if (!aborted) {
+            writer.println();
+            writer.println("packet " + seq + " failed " + MAX_RETRIES + " times, giving up");
+            abort();
+        }
+        writer.flush();
+        fillWindow();
+    }
+
+    private void printSummary() {
+        long millis = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+        writer.println(confirmedBytes + " bytes in " + millis + " ms (" + confirmedBytes * 1000 / millis
+                + " B/s), window " + tuner.getWindow() + ", packet " + packetSize
+                + ", rtt " + tuner.getRttMillis() + " ms"
+                + (retransmissions > 0 ? ", " + retransmissions + " packet(s) retransmitted" : ""));
+    }
+
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener {
+
+        // start markers only delimit text()
+        private static final int PROMPT = 0;
+        private static final int HASH_START = 1;
+        private static final int HASH_END = 2;
+        private static final int CRC_START = 3;
+        private static final int CRC_END = 4;
+        private static final int END = 5;
+        private final MarkerMatcher matcher;
 
         public SerialPortSink() {
-            dataCollector = "";
+            matcher = new MarkerMatcher(this, "> ", RemoteHash.START_MARKER, RemoteHash.END_MARKER,
+                    "~~~CRC-START~~~", "~~~CRC-END~~~", "~~~END~~~");
         }
 
         @Override
@@ -151,47 +640,74 @@ public class FileUploadCommandExecutor extends AbstractCommandExecutor {
             if (!event.isRXCHAR() || event.getEventValue() <= 0) {
                 return false;
             }
+            matcher.feed(serialPort);
+            return true;
+        }
 
-            dataCollector = dataCollector + serialPort.readStringX(event.getEventValue());
-            int promptPos;
+        @Override
+        public boolean marker(int marker) {
             switch (state) {
                 case IDLE:
-                    writer.println("unexpected data when in idle: " + dataCollector);
+                    writer.println("unexpected data when in idle: " + matcher.text());
                     break;
+                case LEAVE_DATA_MODE:
+                    // naks for what was half received come before
+                    if (marker == CRC_END) {
+                        String[] answer = matcher.text().split(":");
+                        if (answer.length == 3 && answer[1].equals("3")) {
+                            inDataMode(Integer.parseInt(answer[2]));
+                        }
+                    } else if (marker == END) {
+                        state = State.QUERY_TRANSFER;
+                        sendNextLuaLine();
+                    }
+                    break;
+                case QUERY_TRANSFER:
                 case LUA_TRANSFER:
-                    promptPos = dataCollector.indexOf("> ");
-                    if (-1 != promptPos) {
-                        dataCollector = dataCollector.substring(promptPos + 2);
-                        sendNextPacket();
+                    if (marker == PROMPT) {
+                        sendNextLuaLine();
+                    }
+                    break;
+                case WAIT_HASH:
+                    if (marker == HASH_END) {
+                        remote = RemoteHash.parse(matcher.text());
+                        state = State.WAIT_QUERY_PROMPT;
+                    }
+                    break;
+                case WAIT_QUERY_PROMPT:
+                    // the upload must not see this prompt
+                    if (marker == PROMPT) {
+                        resumeUpload();
                     }
                     break;
                 case FILE_TRANSFER:
-                    int crcEndMarkerPos = dataCollector.indexOf("~~~CRC-END~~~");
-                    if (-1 != crcEndMarkerPos) {
-                        int start = dataCollector.indexOf("~~~CRC-START~~~");
-                        String crcString = dataCollector.substring(start + 15, crcEndMarkerPos);
-                        dataCollector = dataCollector.substring(crcEndMarkerPos + 13);
-                        int receivedCrc = Integer.parseInt(crcString);
-                        int expectedCrc = Util.CRC(currentChunk);
-                        writer.print(expectedCrc == receivedCrc ? "." : "e");
-                        writer.flush();
-                        sendNextPacket();
+                    // with a window several answers can arrive in one event
+                    if (marker == CRC_END) {
+                        answer(matcher.text().split(":"));
+                    } else if (marker == END && endSent) {
+                        // the answer to END got lost, the esp is done anyway
+                        ended();
+                        serialPort.writeStringX("_up=nil\n");
+                        state = State.WAIT_FINAL_PROMPT;
                     }
                     break;
                 case END:
-                    int endPos = dataCollector.indexOf("~~~END~~~");
-                    if (-1 != endPos) {
-                        dataCollector = dataCollector.substring(endPos + 9);
+                    if (marker == END) {
                         serialPort.writeStringX("_up=nil\n");
                         state = State.WAIT_FINAL_PROMPT;
                     }
                     break;
                 case WAIT_FINAL_PROMPT:
-                    promptPos = dataCollector.indexOf("> ");
-                    if (-1 != promptPos) {
+                    if (marker == PROMPT) {
                         writer.println(); // after writer dots
-                        serialPort.popEventListener();
-                        serialPort.writeStringX("\n");
+                        if (aborted) {
+                            writer.println(describeIncomplete() + ", --resume to continue");
+                        } else {
+                            printSummary();
+                            incomplete = null;
+                        }
+                        finish(!aborted);
+                        return false;
                     }
                     break;
                 default:
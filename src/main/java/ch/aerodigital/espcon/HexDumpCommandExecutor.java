@@ -8,12 +8,18 @@ import java.util.ArrayList;
 import jssc.SerialPortEvent;
 
 /**
+ * Hexdump of a file on the esp, or a part of it. The esp sends raw blocks
+ * (see BlockReader), the lines are formatted here.
  *
  * @author Pawel Jasinski
  */
 public class HexDumpCommandExecutor extends AbstractCommandExecutor {
 
-    private String filename;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final String filename;
+    private final long offset;
+    private final long length;
 
     private enum State {
         IDLE,
@@ -23,74 +29,96 @@ public class HexDumpCommandExecutor extends AbstractCommandExecutor {
     private State state;
     private ArrayList<String> sendBuffer;
     private int sendIndex;
+    private final byte[] row = new byte[16];
+    private int rowLength;
+    private long rowOffset;
+    private final StringBuilder line = new StringBuilder(80);
 
     public HexDumpCommandExecutor(String command) throws InvalidCommandException {
         String args[] = command.split("\\s+");
-        if (args.length != 2) {
-            throw new InvalidCommandException("hexdump needs 1 argument");
+        if (args.length < 2 || args.length > 4) {
+            throw new InvalidCommandException("hexdump needs a file name, optionally offset and length");
         }
         filename = args[1];
+        offset = args.length > 2 ? parse(args[2], "offset") : 0;
+        length = args.length > 3 ? parse(args[3], "length") : -1;
         state = State.IDLE;
     }
 
+    private static long parse(String arg, String what) throws InvalidCommandException {
+        try {
+            long val = Long.decode(arg);
+            if (val < 0) {
+                throw new InvalidCommandException(what + " can not be negative");
+            }
+            return val;
+        } catch (NumberFormatException ex) {
+            throw new InvalidCommandException("unable to interpret " + what + ": " + arg);
+        }
+    }
+
     @Override
     public void start() throws InvalidCommandException {
-        String cmd = ""
-                + "_dump=function()\n"
-                + "  local buf\n"
-                + "  local j=0\n"
-                + "  if file.open('" + filename + "','r') then\n"
-                + "  print('--HexDump start')\n"
-                + "  repeat\n"
-                + "     buf=file.read(1024)\n"
-                + "     if buf~=nil then\n"
-                + "     local n=1024\n"
-                + "     if #buf~=1024 then\n"
-                + "        n=(#buf-#buf%16)+16\n"
-                + "     end\n"
-                + "     for i=1,n do\n"
-                + "         j=j+1\n"
-                + "         if (i-1)%16==0 then\n"
-                + "            uart.write(0,string.format('%08X  ',j-1))\n"
-                + "         end\n"
-                + "         uart.write(0,i>#buf and'   'or string.format('%02X ',buf:byte(i)))\n"
-                + "         if i%8==0 then uart.write(0,' ')end\n"
-                + "         if i%16==0 then uart.write(0,buf:sub(i-16+1, i):gsub('%c','.'),'\\n')end\n"
-                + "         if i%128==0 then tmr.wdclr()end\n"
-                + "     end\n"
-                + "     end\n"
-                + "  until(buf==nil)\n"
-                + "  file.close()\n"
-                + "  print('\\r--HexDump done')\n"
-                + "  else\n"
-                + "  print('\\r--HexDump error')\n"
-                + "  end\n"
-                + "end\n"
-                + "_dump()\n"
-                + "_dump=nil\n";
-        sendBuffer = Util.cmdPrep(cmd);
-        serialPort.pushEventListener(new SerialPortSink());
+        sendBuffer = BlockReader.request(filename, offset, length);
+        rowOffset = offset;
+        listen(new SerialPortSink());
         sendIndex = 0;
         state = State.LUA_TRANSFER;
         sendNext();
     }
 
     private void sendNext() {
-        if (sendIndex < sendBuffer.size()) {
-            serialPort.writeStringX(sendBuffer.get(sendIndex));
-            sendIndex++;
-        }
+        serialPort.writeStringX(sendBuffer.get(sendIndex) + "\n");
+        sendIndex++;
         if (sendIndex == sendBuffer.size()) {
-            serialPort.writeStringX("\n");
+            state = State.DUMP_TRANSFER;
         }
     }
 
-    private class SerialPortSink implements SerialPortEventListenerX {
+    private void dump(byte[] data, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            row[rowLength++] = data[i];
+            if (rowLength == row.length) {
+                printRow();
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Offset, 16 bytes in hex and the same as text, like hexdump -C.
+     */
+    private void printRow() {
+        line.setLength(0);
+        line.append(String.format("%08X  ", rowOffset));
+        for (int i = 0; i < row.length; i++) {
+            if (i < rowLength) {
+                line.append(HEX[row[i] >> 4 & 0xF]).append(HEX[row[i] & 0xF]).append(' ');
+            } else {
+                line.append("   ");
+            }
+            if (i == 7) {
+                line.append(' ');
+            }
+        }
+        line.append(' ');
+        for (int i = 0; i < rowLength; i++) {
+            int c = row[i] & 0xFF;
+            line.append(c < 0x20 || c >= 0x7F ? '.' : (char) c);
+        }
+        writer.println(line);
+        rowOffset += rowLength;
+        rowLength = 0;
+    }
 
-        private String dataCollector;
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener, BlockReader.Listener {
+
+        private final MarkerMatcher matcher;
+        private final BlockReader blocks;
 
         public SerialPortSink() {
-            dataCollector = "";
+            matcher = new MarkerMatcher(this, "> ");
+            blocks = new BlockReader(this);
         }
 
         @Override
@@ -98,46 +126,47 @@ public class HexDumpCommandExecutor extends AbstractCommandExecutor {
             if (!event.isRXCHAR() || event.getEventValue() <= 0) {
                 return false;
             }
-            dataCollector = dataCollector + serialPort.readStringX(event.getEventValue());
-            switch (state) {
-                case IDLE:
-                    writer.println("unexpected data when in idle: " + dataCollector);
-                    break;
-                case LUA_TRANSFER:
-                    int startMarkerPos = dataCollector.indexOf("--HexDump start");
-                    if (-1 != startMarkerPos) {
-                        dataCollector = dataCollector.substring(startMarkerPos + 15);
-                        state = State.DUMP_TRANSFER;
-                        break;
-                    }
-                    int errMarkerPos = dataCollector.indexOf("--HexDump error");
-                    if (-1 != errMarkerPos) {
-                        serialPort.popEventListener();
-                        serialPort.writeStringX("\n");
-                        break;
-                    }
-                    int promptPos = dataCollector.indexOf("> ");
-                    if (-1 != promptPos) {
-                        dataCollector = dataCollector.substring(promptPos + 2);
-                        sendNext();
-                        // break;
-                    }
-                    break;
-                case DUMP_TRANSFER:
-                    int endMarkerPos = dataCollector.indexOf("--HexDump done");
-                    if (-1 != endMarkerPos) {
-                        dataCollector = dataCollector.substring(endMarkerPos + 15);
-                        serialPort.popEventListener();
-                        break;
-                    }
-                    writer.print(dataCollector);
-                    writer.flush();
-                    dataCollector = "";
-                    break;
-                default:
-                    break;
+            if (state == State.LUA_TRANSFER) {
+                matcher.feed(serialPort);
+            }
+            if (state == State.DUMP_TRANSFER) {
+                blocks.feed(serialPort);
             }
             return true;
         }
+
+        @Override
+        public boolean marker(int marker) {
+            if (state != State.LUA_TRANSFER) {
+                writer.println("unexpected data: " + matcher.text());
+                return true;
+            }
+            sendNext();
+            // with the call sent, everything is for the block reader
+            return state == State.LUA_TRANSFER;
+        }
+
+        @Override
+        public void block(byte[] data, int off, int len) {
+            dump(data, off, len);
+            setProgress(blocks.getReceived(), length);
+        }
+
+        @Override
+        public void end(String error) {
+            if (rowLength > 0) {
+                printRow();
+            }
+            state = State.IDLE;
+            if (error != null) {
+                writer.println("hexdump " + filename + ": " + error);
+                writer.flush();
+                finish(false);
+                return;
+            }
+            writer.flush();
+            // the prompt follows, no need to ask for one
+            stopListening();
+        }
     }
 }
@@ -0,0 +1,113 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+/**
+ * Picks window and packet size of the binary upload from what the link does.
+ *
+ * Window follows TCP Vegas: comparing the smoothed round trip time with the
+ * best one seen tells how many packets wait in a queue somewhere. The window
+ * grows while less than one packet is queued, shrinks when more than two are,
+ * and is halved on every damaged packet.
+ *
+ * Packet size is halved when more than 2 of the last 16 packets were damaged
+ * (a short packet is less likely to be hit and cheaper to repeat), and
+ * doubled again after 64 good packets in a row.
+ *
+ * @author Pawel Jasinski
+ */
+public class LinkTuner {
+
+    public static final int MIN_PACKET_SIZE = 32;
+    private static final int HISTORY = 16;
+    private static final int MAX_ERRORS = 2;
+    private static final int GROW_AFTER = 64;
+
+    private final int maxWindow;
+    private final int maxPacketSize;
+
+    private int window;
+    private int packetSize;
+
+    private long minRtt = Long.MAX_VALUE; // nanoseconds
+    private long smoothedRtt;
+    private int okInWindow; // good packets since last window change
+    private int okInRow;
+    private int history; // bit per packet, 1 is damaged
+    private int packets; // since last packet size change
+
+    public LinkTuner(int maxWindow, int maxPacketSize) {
+        this.maxWindow = Math.max(1, maxWindow);
+        this.maxPacketSize = maxPacketSize;
+        window = Math.min(2, this.maxWindow);
+        packetSize = maxPacketSize;
+    }
+
+    /**
+     * @param ok false if the packet was damaged
+     * @param rtt nanoseconds from sending to the answer
+     */
+    public void packetDone(boolean ok, long rtt) {
+        history = (history << 1) | (ok ? 0 : 1);
+        packets++;
+        if (ok) {
+            okInRow++;
+            okInWindow++;
+            minRtt = Math.min(minRtt, rtt);
+            smoothedRtt = smoothedRtt == 0 ? rtt : (7 * smoothedRtt + rtt) / 8;
+            if (okInWindow >= window) {
+                okInWindow = 0;
+                // packets sitting in queues, the esp rx buffer being one of them
+                double queued = window * (1.0 - (double) minRtt / smoothedRtt);
+                if (queued < 1 && window < maxWindow) {
+                    window++;
+                } else if (queued > 2 && window > 1) {
+                    window--;
+                }
+            }
+            if (okInRow >= GROW_AFTER && packetSize < maxPacketSize) {
+                setPacketSize(Math.min(maxPacketSize, packetSize * 2));
+            }
+        } else {
+            okInRow = 0;
+            okInWindow = 0;
+            window = Math.max(1, window / 2);
+            int mask = (1 << Math.min(packets, HISTORY)) - 1;
+            if (Integer.bitCount(history & mask) > MAX_ERRORS && packetSize > MIN_PACKET_SIZE) {
+                setPacketSize(Math.max(MIN_PACKET_SIZE, packetSize / 2));
+            }
+        }
+    }
+
+    private void setPacketSize(int size) {
+        packetSize = size;
+        packets = 0;
+        history = 0;
+        okInRow = 0;
+        // round trip depends on the size
+        minRtt = Long.MAX_VALUE;
+        smoothedRtt = 0;
+    }
+
+    /**
+     * @return number of packets allowed in flight
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return payload size to use for the next packets
+     */
+    public int getPacketSize() {
+        return packetSize;
+    }
+
+    /**
+     * @return smoothed round trip time in milliseconds
+     */
+    public long getRttMillis() {
+        return smoothedRtt / 1000000;
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Packs lua source into as few REPL lines as possible.
+ *
+ * The source is scanned like the lua lexer does: strings (short and long)
+ * are kept as they are, comments are dropped and any other white space
+ * becomes a single space, or nothing where the neighbours can not merge into
+ * a different token. Newlines inside strings stay, the REPL continues the
+ * statement on the next line.
+ *
+ * The REPL runs a line as soon as the lines so far are a complete chunk, so
+ * a line is only broken where that can not change the code: inside a block
+ * or brackets (the chunk is not complete yet), after a token no statement
+ * ends with (operator, "=", ",", "local", ...), or where the source had a
+ * newline in front of a name or keyword. A break is never put in front of
+ * "(" following an expression, lua 5.1 takes it for an ambiguous call. Lua
+ * which does not fit into lines this way is an error.
+ *
+ * @author Pawel Jasinski
+ */
+public class LuaPacker {
+
+    /**
+     * Line length accepted by the esp REPL, with room for the line end.
+     */
+    public static final int LINE_LIMIT = 250;
+
+    // a statement never ends with these, after ";" the next one starts
+    private static final Set<String> BREAK_AFTER = new HashSet<>(Arrays.asList(
+            "+", "-", "*", "/", "%", "^", "#", "..", "==", "~=", "<", "<=", ">", ">=",
+            "=", ",", ".", ":", ";", "and", "or", "not", "local"));
+    private static final Set<String> OPEN = new HashSet<>(Arrays.asList(
+            "function", "if", "do", "repeat", "(", "{", "["));
+    private static final Set<String> CLOSE = new HashSet<>(Arrays.asList(
+            "end", "until", ")", "}", "]"));
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+            "and", "break", "do", "else", "elseif", "end", "false", "for", "function", "if", "in",
+            "local", "nil", "not", "or", "repeat", "return", "then", "true", "until", "while"));
+
+    private final String src;
+    private int pos;
+    private boolean space; // white space or comment before the last token
+    private boolean newline; // a newline among it
+
+    private LuaPacker(String src) {
+        this.src = src;
+    }
+
+    /**
+     * @return lines without line end
+     */
+    public static ArrayList<String> pack(String lua) {
+        return pack(lua, LINE_LIMIT);
+    }
+
+    /**
+     * @param limit max line length
+     * @return lines without line end
+     * @throws IllegalArgumentException if a token, e.g. a string, or a part
+     * of a statement which can not be broken is longer than the limit
+     */
+    public static ArrayList<String> pack(String lua, int limit) {
+        LuaPacker lexer = new LuaPacker(lua.replace("\r\n", "\n"));
+        StringBuilder out = new StringBuilder(lua.length());
+        int lineStart = 0;
+        int breakAt = -1; // last place in the line which may be broken
+        int breakSep = 0; // length of the separator there
+        int depth = 0;
+        String prev = null;
+        String token;
+        while ((token = lexer.next()) != null) {
+            if (longestLine(token) > limit) {
+                throw tooLong("lua token", token, limit);
+            }
+            if (prev != null) {
+                String sep = lexer.space && needsSpace(prev.charAt(prev.length() - 1), token.charAt(0)) ? " " : "";
+                boolean breakable = depth > 0 ? !(token.equals("(") && endsExpression(prev))
+                        : BREAK_AFTER.contains(prev) || lexer.newline && startsStatement(token);
+                int firstLine = token.indexOf('\n');
+                firstLine = firstLine < 0 ? token.length() : firstLine;
+                boolean fits = out.length() - lineStart + sep.length() + firstLine <= limit;
+                if (!fits && breakable) {
+                    out.append('\n');
+                    lineStart = out.length();
+                    breakAt = -1;
+                } else {
+                    if (!fits) {
+                        if (breakAt < 0) {
+                            throw tooLong("lua statement", out.substring(lineStart), limit);
+                        }
+                        out.replace(breakAt, breakAt + breakSep, "\n");
+                        lineStart = breakAt + 1;
+                        breakAt = -1;
+                        if (out.length() - lineStart + sep.length() + firstLine > limit) {
+                            throw tooLong("lua statement", out.substring(lineStart), limit);
+                        }
+                    }
+                    if (breakable) {
+                        breakAt = out.length();
+                        breakSep = sep.length();
+                    }
+                    out.append(sep);
+                }
+            }
+            out.append(token);
+            int nl = token.lastIndexOf('\n');
+            if (nl >= 0) {
+                lineStart = out.length() - token.length() + nl + 1;
+                breakAt = -1;
+            }
+            if (OPEN.contains(token)) {
+                depth++;
+            } else if (CLOSE.contains(token) && depth > 0) {
+                depth--;
+            }
+            prev = token;
+        }
+        ArrayList<String> lines = new ArrayList<>();
+        if (out.length() > 0) {
+            for (String line : out.toString().split("\n", -1)) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static IllegalArgumentException tooLong(String what, String text, int limit) {
+        return new IllegalArgumentException(what + " longer than " + limit + " characters: "
+                + text.substring(0, Math.min(40, text.length())) + "...");
+    }
+
+    /**
+     * @return true if a "(" after the token would continue the expression
+     */
+    private static boolean endsExpression(String token) {
+        char c = token.charAt(token.length() - 1);
+        return c == ')' || c == ']' || c == '"' || c == '\''
+                || isWord(c) && !KEYWORDS.contains(token) && !Character.isDigit(token.charAt(0));
+    }
+
+    /**
+     * @return true if the token can not continue the statement in front of
+     * it
+     */
+    private static boolean startsStatement(String token) {
+        char c = token.charAt(0);
+        return isWord(c) && !Character.isDigit(c) && !token.equals("and") && !token.equals("or");
+    }
+
+    /**
+     * Two neighbours which were apart in the source and would lex differently
+     * when joined.
+     */
+    static boolean needsSpace(char left, char right) {
+        if (isWord(left) && isWord(right)) {
+            return true;
+        }
+        if (left == '.' || right == '.') {
+            return true; // concat next to numbers, .. and ...
+        }
+        if (left == '-' && right == '-' || left == '[' && (right == '[' || right == '=')) {
+            return true; // comment, long bracket
+        }
+        if (right == '=' && "=<>~".indexOf(left) >= 0) {
+            return true;
+        }
+        return left == right && "/:<>".indexOf(left) >= 0;
+    }
+
+    private static boolean isWord(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static int longestLine(String text) {
+        int longest = 0;
+        int start = 0;
+        int nl;
+        while ((nl = text.indexOf('\n', start)) >= 0) {
+            longest = Math.max(longest, nl - start);
+            start = nl + 1;
+        }
+        return Math.max(longest, text.length() - start);
+    }
+
+    /**
+     * @return the lua tokens of the source, without white space and
+     * comments
+     */
+    static List<String> tokens(String lua) {
+        LuaPacker lexer = new LuaPacker(lua);
+        List<String> tokens = new ArrayList<>();
+        String token;
+        while ((token = lexer.next()) != null) {
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    /**
+     * @return next token, null at the end. space and newline tell what was
+     * skipped in front of it
+     */
+    private String next() {
+        int skipped = pos;
+        space = skipSpaceOrComment();
+        newline = space && src.substring(skipped, pos).indexOf('\n') >= 0;
+        if (pos >= src.length()) {
+            return null;
+        }
+        int start = pos;
+        char c = src.charAt(start);
+        if (c == '"' || c == '\'') {
+            skipShortString(c);
+        } else if (c == '[' && longBracketLevel() >= 0) {
+            skipLongBracket(longBracketLevel());
+        } else if (isWord(c) || c == '.' && start + 1 < src.length() && Character.isDigit(src.charAt(start + 1))) {
+            // names and numbers, with the sign of an exponent
+            pos++;
+            while (pos < src.length()) {
+                char d = src.charAt(pos);
+                boolean sign = (d == '+' || d == '-') && Character.isDigit(c)
+                        && "eE".indexOf(src.charAt(pos - 1)) >= 0;
+                if (!isWord(d) && !sign && !(d == '.' && (Character.isDigit(c) || c == '.'))) {
+                    break;
+                }
+                pos++;
+            }
+        } else if (src.startsWith("...", start)) {
+            pos += 3;
+        } else if (src.startsWith("..", start) || src.startsWith("==", start) || src.startsWith("~=", start)
+                || src.startsWith("<=", start) || src.startsWith(">=", start)) {
+            pos += 2;
+        } else {
+            pos++;
+        }
+        return src.substring(start, pos);
+    }
+
+    private boolean skipSpaceOrComment() {
+        int start = pos;
+        while (pos < src.length()) {
+            if (Character.isWhitespace(src.charAt(pos))) {
+                pos++;
+            } else if (src.startsWith("--", pos)) {
+                pos += 2;
+                int level = pos < src.length() && src.charAt(pos) == '[' ? longBracketLevel() : -1;
+                if (level >= 0) {
+                    skipLongBracket(level);
+                } else {
+                    int nl = src.indexOf('\n', pos);
+                    pos = nl < 0 ? src.length() : nl;
+                }
+            } else {
+                break;
+            }
+        }
+        return pos > start;
+    }
+
+    /**
+     * @return number of = in the long bracket at pos, -1 if there is none
+     */
+    private int longBracketLevel() {
+        int i = pos + 1;
+        while (i < src.length() && src.charAt(i) == '=') {
+            i++;
+        }
+        return i < src.length() && src.charAt(i) == '[' ? i - pos - 1 : -1;
+    }
+
+    private void skipLongBracket(int level) {
+        StringBuilder close = new StringBuilder("]");
+        for (int i = 0; i < level; i++) {
+            close.append('=');
+        }
+        close.append(']');
+        int end = src.indexOf(close.toString(), pos + level + 2);
+        pos = end < 0 ? src.length() : end + close.length();
+    }
+
+    private void skipShortString(char quote) {
+        pos++;
+        while (pos < src.length()) {
+            char c = src.charAt(pos);
+            if (c == '\\') {
+                // escaped newline included
+                pos += 2;
+            } else if (c == quote) {
+                pos++;
+                return;
+            } else if (c == '\n') {
+                return; // not terminated, lua complains
+            } else {
+                pos++;
+            }
+        }
+        pos = Math.min(pos, src.length());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.util.Arrays;
+
+/**
+ * Small LZ77 compressor with a decoder cheap enough for the esp.
+ *
+ * The output is a sequence of tokens, each of them can be decoded on its own
+ * as long as the decoder keeps the last WINDOW bytes of output:
+ * <ul>
+ * <li>0x00-0x7F: n+1 literal bytes follow</li>
+ * <li>0x80-0xFF: copy n-0x80+3 bytes from distance d, d follows as 2 bytes big
+ * endian. Matches never overlap the bytes they produce (d &gt;= length).</li>
+ * </ul>
+ *
+ * @author Pawel Jasinski
+ */
+public class LzCompressor {
+
+    public static final int WINDOW = 1024;
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 0x7F + MIN_MATCH;
+    // limited so a literal token stays short even when every byte is escaped
+    private static final int MAX_LITERALS = 64;
+    private static final int HASH_BITS = 12;
+    private static final int MAX_CHAIN = 64;
+
+    private final byte[] data;
+    private int pos;
+    private final int[] head = new int[1 << HASH_BITS];
+    private final int[] prev = new int[WINDOW];
+    private int inserted; // positions below are in the hash chains
+
+    private int matchPos = -1; // match found while collecting literals
+    private int matchDistance;
+    private int matchLength;
+
+    public LzCompressor(byte[] data) {
+        this.data = data;
+        Arrays.fill(head, -1);
+    }
+
+    /**
+     * @return input bytes covered by the tokens so far
+     */
+    public int position() {
+        return pos;
+    }
+
+    public boolean hasNext() {
+        return pos < data.length;
+    }
+
+    /**
+     * @return next token, literal run or match
+     */
+    public byte[] next() {
+        if (matchPos != pos) {
+            int start = pos;
+            while (pos < data.length && pos - start < MAX_LITERALS) {
+                if (findMatch()) {
+                    break;
+                }
+                pos++;
+            }
+            if (pos > start) {
+                byte[] token = new byte[pos - start + 1];
+                token[0] = (byte) (pos - start - 1);
+                System.arraycopy(data, start, token, 1, pos - start);
+                return token;
+            }
+        }
+        byte[] token = new byte[]{
+            (byte) (0x80 + matchLength - MIN_MATCH),
+            (byte) (matchDistance >> 8),
+            (byte) matchDistance};
+        pos += matchLength;
+        matchPos = -1;
+        return token;
+    }
+
+    private int hash(int p) {
+        int h = ((data[p] & 0xFF) << 8) ^ ((data[p + 1] & 0xFF) << 4) ^ (data[p + 2] & 0xFF);
+        return (h ^ (h >> HASH_BITS)) & ((1 << HASH_BITS) - 1);
+    }
+
+    private void insertUpTo(int p) {
+        for (; inserted < p && inserted + MIN_MATCH <= data.length; inserted++) {
+            int h = hash(inserted);
+            prev[inserted & (WINDOW - 1)] = head[h];
+            head[h] = inserted;
+        }
+        inserted = Math.max(inserted, p);
+    }
+
+    /**
+     * Look for a match at pos, positions before pos are added to the chains.
+     *
+     * @return true if match was found, matchPos/Distance/Length are set
+     */
+    private boolean findMatch() {
+        insertUpTo(pos);
+        if (pos + MIN_MATCH > data.length) {
+            return false;
+        }
+        int best = 0;
+        int bestDistance = 0;
+        int chain = MAX_CHAIN;
+        for (int cand = head[hash(pos)]; cand >= 0 && pos - cand <= WINDOW && chain-- > 0;
+                cand = prev[cand & (WINDOW - 1)]) {
+            int limit = Math.min(Math.min(MAX_MATCH, data.length - pos), pos - cand);
+            int len = 0;
+            while (len < limit && data[cand + len] == data[pos + len]) {
+                len++;
+            }
+            if (len > best) {
+                best = len;
+                bestDistance = pos - cand;
+                if (len == limit) {
+                    break;
+                }
+            }
+        }
+        if (best < MIN_MATCH) {
+            return false;
+        }
+        matchPos = pos;
+        matchDistance = bestDistance;
+        matchLength = best;
+        return true;
+    }
+
+    /**
+     * Lua decoder, _d(c) decodes complete tokens in c and returns the output.
+     * The decoded pieces are kept in the global table _h, the oldest ones are
+     * dropped once the rest covers WINDOW bytes. Nothing is concatenated to
+     * keep the history, a match is cut from the pieces it spans.
+     *
+     * @return lua source
+     */
+    public static String luaDecoder() {
+        return ""
+                + "_h={}\n"
+                + "_d=function(c)\n"
+                + "  local o={}\n"
+                + "  local h=_h\n"
+                + "  local i=1\n"
+                + "  local t,s,k,a\n"
+                + "  while i<=#c do\n"
+                + "    t=c:byte(i)\n"
+                + "    if t<128 then\n"
+                + "      s=c:sub(i+1,i+1+t)\n"
+                + "      i=i+2+t\n"
+                + "    else\n"
+                + "      a=c:byte(i+1)*256+c:byte(i+2)\n"
+                + "      t=t-" + (0x80 - MIN_MATCH) + "\n"
+                + "      k=#h\n"
+                + "      while a>#h[k] do\n"
+                + "        a=a-#h[k]\n"
+                + "        k=k-1\n"
+                + "      end\n"
+                + "      s=h[k]:sub(#h[k]-a+1,#h[k]-a+t)\n"
+                + "      while #s<t do\n"
+                + "        k=k+1\n"
+                + "        s=s..h[k]:sub(1,t-#s)\n"
+                + "      end\n"
+                + "      i=i+3\n"
+                + "    end\n"
+                + "    o[#o+1]=s\n"
+                + "    h[#h+1]=s\n"
+                + "  end\n"
+                + "  k=#h\n"
+                + "  a=0\n"
+                + "  while k>0 and a<" + WINDOW + " do\n"
+                + "    a=a+#h[k]\n"
+                + "    k=k-1\n"
+                + "  end\n"
+                + "  if k>0 then\n"
+                + "    _h={}\n"
+                + "    for j=k+1,#h do _h[#_h+1]=h[j] end\n"
+                + "  end\n"
+                + "  return table.concat(o)\n"
+                + "end\n";
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Finds markers in received bytes, looking at every byte once.
+ *
+ * All markers are compiled into one automaton (Aho-Corasick turned into a
+ * full transition table), so matching costs one array lookup per byte no
+ * matter how many markers there are or how the data is split into events.
+ * Only the watched markers are reported; when several end at the same byte
+ * the longest wins. Matches do not overlap, after a match the search starts
+ * fresh.
+ *
+ * Bytes between two reported markers are kept as text, see text() and
+ * takeText().
+ *
+ * @author Pawel Jasinski
+ */
+public class MarkerMatcher {
+
+    public interface Listener {
+
+        /**
+         * @param marker index of the marker in the constructor arguments
+         * @return false to stop, the rest of the received data is left for
+         * the next listener
+         */
+        boolean marker(int marker);
+    }
+
+    private static final int TEXT_LIMIT = 16 * 1024;
+
+    private final Listener listener;
+    private final int[] markerLength;
+    private final int[][] next; // state, byte -> state
+    private final int[] ends; // state -> bit per marker ending here
+    private final int[] depth; // state -> length of the matched prefix
+    private final byte[] scratch = new byte[1024];
+    private int watched;
+    private int state;
+    private byte[] text = new byte[256];
+    private int textLength;
+    private int textEnd; // end of text() at the reported marker
+
+    /**
+     * @param listener called for every watched marker found
+     * @param markers ascii markers, at most 32
+     */
+    public MarkerMatcher(Listener listener, String... markers) {
+        if (markers.length > 32) {
+            throw new IllegalArgumentException("too many markers");
+        }
+        this.listener = listener;
+        markerLength = new int[markers.length];
+        ArrayList<int[]> trie = new ArrayList<>();
+        ArrayList<Integer> endList = new ArrayList<>();
+        ArrayList<Integer> depthList = new ArrayList<>();
+        trie.add(newRow());
+        endList.add(0);
+        depthList.add(0);
+        for (int m = 0; m < markers.length; m++) {
+            byte[] marker = markers[m].getBytes();
+            markerLength[m] = marker.length;
+            int s = 0;
+            for (byte b : marker) {
+                int[] row = trie.get(s);
+                if (row[b & 0xFF] <= 0) {
+                    row[b & 0xFF] = trie.size();
+                    trie.add(newRow());
+                    endList.add(0);
+                    depthList.add(depthList.get(s) + 1);
+                }
+                s = row[b & 0xFF];
+            }
+            endList.set(s, endList.get(s) | (1 << m));
+        }
+        int states = trie.size();
+        next = trie.toArray(new int[states][]);
+        ends = new int[states];
+        depth = new int[states];
+        for (int s = 0; s < states; s++) {
+            ends[s] = endList.get(s);
+            depth[s] = depthList.get(s);
+        }
+        // breadth first, the fallback of a state is always done before it
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int b = 0; b < 256; b++) {
+            if (next[0][b] > 0) {
+                fail[next[0][b]] = 0;
+                queue.add(next[0][b]);
+            } else {
+                next[0][b] = 0;
+            }
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            ends[s] |= ends[fail[s]];
+            for (int b = 0; b < 256; b++) {
+                int t = next[s][b];
+                if (t > 0) {
+                    fail[t] = next[fail[s]][b];
+                    queue.add(t);
+                } else {
+                    next[s][b] = next[fail[s]][b];
+                }
+            }
+        }
+        watched = (int) ((1L << markers.length) - 1);
+    }
+
+    private static int[] newRow() {
+        int[] row = new int[256];
+        Arrays.fill(row, -1);
+        return row;
+    }
+
+    /**
+     * Report only the given markers, the others are plain text.
+     */
+    public void watch(int... markers) {
+        watched = 0;
+        for (int m : markers) {
+            watched |= 1 << m;
+        }
+    }
+
+    /**
+     * Feed everything the port has buffered.
+     *
+     * @return false if the listener stopped
+     */
+    public boolean feed(SerialPortX port) {
+        int n;
+        while ((n = port.peekBytesX(scratch, 0, scratch.length)) > 0) {
+            int used = feed(scratch, 0, n);
+            port.skipBytesX(used);
+            if (used < n) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of bytes consumed, less than len if the listener stopped
+     */
+    public int feed(byte[] data, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            byte b = data[i];
+            if (textLength == text.length) {
+                growText();
+            }
+            text[textLength++] = b;
+            state = next[state][b & 0xFF];
+            int hits = ends[state] & watched;
+            if (hits != 0) {
+                int marker = longest(hits);
+                textEnd = textLength - markerLength[marker];
+                state = 0;
+                boolean more = listener.marker(marker);
+                textLength = 0;
+                if (!more) {
+                    return i - off + 1;
+                }
+            }
+        }
+        return len;
+    }
+
+    private int longest(int hits) {
+        int best = -1;
+        for (int m = 0; m < markerLength.length; m++) {
+            if ((hits & (1 << m)) != 0 && (best == -1 || markerLength[m] > markerLength[best])) {
+                best = m;
+            }
+        }
+        return best;
+    }
+
+    private void growText() {
+        if (text.length < TEXT_LIMIT) {
+            text = Arrays.copyOf(text, text.length * 2);
+        } else {
+            // nobody takes the text, keep the recent half
+            int keep = text.length / 2;
+            System.arraycopy(text, textLength - keep, text, 0, keep);
+            textLength = keep;
+        }
+    }
+
+    /**
+     * Valid inside Listener.marker only.
+     *
+     * @return bytes between the previous marker and the reported one
+     */
+    public String text() {
+        return new String(text, 0, textEnd);
+    }
+
+    /**
+     * Removes the text which can not be part of a marker any more, for output
+     * passed through as it arrives.
+     *
+     * @return the text, possibly empty
+     */
+    public String takeText() {
+        int safe = textLength - depth[state];
+        String s = new String(text, 0, safe);
+        System.arraycopy(text, safe, text, 0, textLength - safe);
+        textLength -= safe;
+        return s;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import static ch.aerodigital.espcon.App.serialPort;
+import java.util.ArrayList;
+import jssc.SerialPortEvent;
+
+/**
+ * Sends text pasted into the terminal as one pipelined burst.
+ *
+ * The text is packed by LuaPacker, each chunk is one line for the esp REPL.
+ * Chunks are sent without waiting for the prompt of the previous one as long
+ * as the unanswered ones fit into the input buffer of the esp, every prompt
+ * frees the oldest chunk.
+ *
+ * A prompt counts only at the start of a line, right after a newline or the
+ * previous prompt, so "> " printed inside a line is output. Output which
+ * ends a line with "> " itself still looks like a prompt.
+ *
+ * @author Pawel Jasinski
+ */
+public class PasteCommandExecutor extends AbstractCommandExecutor {
+
+    // unanswered bytes, below the 256 byte line buffer of the esp
+    private static final int WINDOW = 200;
+
+    private enum State {
+        IDLE,
+        TRANSFER,
+    }
+    private State state;
+    private final String pasted;
+    private final int lines;
+    private final ArrayList<String> sendBuffer;
+    private int sendIndex;
+    private int ackIndex;
+    private int inFlight;
+    private long startTime;
+
+    public PasteCommandExecutor(String text) {
+        pasted = text;
+        lines = text.split("\n").length;
+        sendBuffer = new ArrayList<>();
+        state = State.IDLE;
+    }
+
+    @Override
+    public void start() throws InvalidCommandException {
+        try {
+            for (String line : LuaPacker.pack(pasted)) {
+                sendBuffer.add(line + "\n");
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new InvalidCommandException("unable to paste, " + ex.getMessage());
+        }
+        if (sendBuffer.isEmpty()) {
+            throw new InvalidCommandException("nothing to paste");
+        }
+        startTime = System.currentTimeMillis();
+        listen(new SerialPortSink());
+        state = State.TRANSFER;
+        sendNext();
+    }
+
+    /**
+     * Send chunks as long as the window allows, at least one.
+     */
+    private synchronized void sendNext() {
+        while (sendIndex < sendBuffer.size()) {
+            String chunk = sendBuffer.get(sendIndex);
+            if (inFlight > 0 && inFlight + chunk.length() > WINDOW) {
+                break;
+            }
+            inFlight += chunk.length();
+            sendIndex++;
+            serialPort.writeStringX(chunk);
+        }
+    }
+
+    /**
+     * @return true when every chunk got its prompt
+     */
+    private synchronized boolean acknowledge() {
+        inFlight -= sendBuffer.get(ackIndex).length();
+        ackIndex++;
+        setProgress(ackIndex, sendBuffer.size());
+        return ackIndex == sendBuffer.size();
+    }
+
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener {
+
+        private static final int PROMPT = 0;
+        private static final int CONTINUE = 1;
+        private final MarkerMatcher matcher;
+
+        public SerialPortSink() {
+            matcher = new MarkerMatcher(this, "> ", ">> ");
+        }
+
+        @Override
+        public boolean serialEvent(SerialPortEvent event) {
+            if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+                return false;
+            }
+            matcher.feed(serialPort);
+            return true;
+        }
+
+        @Override
+        public boolean marker(int marker) {
+            if (state != State.TRANSFER) {
+                return true;
+            }
+            // output of the chunk, e.g. prints or errors
+            String text = matcher.text();
+            if (!text.isEmpty() && !text.endsWith("\n")) {
+                // not at the start of a line, e.g. print('a> b')
+                writer.print(text + (marker == CONTINUE ? ">> " : "> "));
+                writer.flush();
+                return true;
+            }
+            if (!text.isEmpty()) {
+                writer.print(text);
+                writer.flush();
+            }
+            if (!acknowledge()) {
+                sendNext();
+                return true;
+            }
+            state = State.IDLE;
+            writer.println("pasted " + lines + " lines in " + sendBuffer.size() + " chunks, "
+                    + (System.currentTimeMillis() - startTime) + " ms"
+                    + (marker == CONTINUE ? ", statement not complete" : ""));
+            writer.flush();
+            finish(true);
+            return false;
+        }
+    }
+}
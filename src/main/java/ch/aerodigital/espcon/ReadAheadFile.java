@@ -0,0 +1,80 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Local file read in large blocks and handed out a byte or a run at a time,
+ * for the turbo uploads which build their chunks byte by byte.
+ *
+ * @author Pawel Jasinski
+ */
+public class ReadAheadFile implements Closeable {
+
+    private static final int READ_AHEAD_SIZE = 16 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer readAhead = ByteBuffer.allocate(READ_AHEAD_SIZE);
+
+    public ReadAheadFile(String path) throws IOException {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        readAhead.limit(0);
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * @return false at the end of the file
+     */
+    public boolean hasNext() throws IOException {
+        if (!readAhead.hasRemaining()) {
+            readAhead.clear();
+            int read = channel.read(readAhead);
+            readAhead.flip();
+            return read > 0;
+        }
+        return true;
+    }
+
+    /**
+     * @return next byte without taking it, only after hasNext
+     */
+    public byte peek() {
+        return readAhead.get(readAhead.position());
+    }
+
+    /**
+     * Take the byte seen with peek.
+     */
+    public void skip() {
+        readAhead.position(readAhead.position() + 1);
+    }
+
+    /**
+     * @return number of bytes copied, less than len only at the end of the
+     * file
+     */
+    public int read(byte[] dst, int off, int len) throws IOException {
+        int n = 0;
+        while (n < len && hasNext()) {
+            int run = Math.min(readAhead.remaining(), len - n);
+            readAhead.get(dst, off + n, run);
+            n += run;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
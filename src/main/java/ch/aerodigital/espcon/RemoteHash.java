@@ -0,0 +1,175 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Size and hash of a file on the esp.
+ *
+ * The lua helper _hs(name[,size]) prints size:algorithm:hash between
+ * ~~~HASH-START~~~ and ~~~HASH-END~~~ markers. crypto.fhash (sha1) is used
+ * when the firmware has it, otherwise CRC-32 is computed in lua. If size is
+ * given and differs, or the file does not exist, only the size (or nil) is
+ * printed.
+ *
+ * @author Pawel Jasinski
+ */
+public class RemoteHash {
+
+    public static final String START_MARKER = "~~~HASH-START~~~";
+    public static final String END_MARKER = "~~~HASH-END~~~";
+
+    private final long size; // -1 if there is no such file
+    private final String algorithm; // null if only the size is known
+    private final String hash;
+
+    private RemoteHash(long size, String algorithm, String hash) {
+        this.size = size;
+        this.algorithm = algorithm;
+        this.hash = hash;
+    }
+
+    public static String lua() {
+        return ""
+                + "_hs=function(n,z)\n"
+                + "  local s=file.list()[n]\n"
+                + "  if s==nil or (z and s~=z) then\n"
+                + "    print('~~~HASH-'..'START~~~'..tostring(s)..'~~~HASH-'..'END~~~')\n"
+                + "    return\n"
+                + "  end\n"
+                + "  if crypto and crypto.fhash then\n"
+                + "    local x=encoder and encoder.toHex or crypto.toHex\n"
+                + "    print('~~~HASH-'..'START~~~'..s..':sha1:'..x(crypto.fhash('sha1',n))..'~~~HASH-'..'END~~~')\n"
+                + "    return\n"
+                + "  end\n"
+                + Util.luaCrc32()
+                + "  local f=file.open(n,'r')\n"
+                + "  local r=-1\n"
+                + "  local b\n"
+                + "  repeat\n"
+                + "    b=f:read(256)\n"
+                + "    if b then\n"
+                + "      for j=1,#b do\n"
+                + "        r=crc(r,b:byte(j))\n"
+                + "      end\n"
+                + "      tmr.wdclr()\n"
+                + "    end\n"
+                + "  until b==nil\n"
+                + "  f:close()\n"
+                + "  print('~~~HASH-'..'START~~~'..s..':crc32:'..bit.bnot(r)..'~~~HASH-'..'END~~~')\n"
+                + "end\n";
+    }
+
+    /**
+     * @param target file on the esp
+     * @param size expected size, hash is computed only if it matches, -1 to
+     * always compute the hash
+     * @return lua line calling and dropping the helper, or asking the agent
+     */
+    public static String call(String target, long size) {
+        if (Agent.isActive()) {
+            return Agent.hash(target, size);
+        }
+        return "_hs('" + target + "'" + (size < 0 ? "" : "," + size) + ") _hs=nil";
+    }
+
+    /**
+     * @return lua lines defining the helper unless the agent has it, and
+     * the call
+     */
+    public static ArrayList<String> request(String target, long size) {
+        ArrayList<String> lines = Agent.isActive() ? new ArrayList<>() : LuaPacker.pack(lua());
+        lines.add(call(target, size));
+        return lines;
+    }
+
+    /**
+     * @param answer received text between START_MARKER and END_MARKER
+     * @return parsed answer
+     */
+    public static RemoteHash parse(String answer) {
+        String[] parts = answer.split(":");
+        long size;
+        try {
+            size = Long.parseLong(parts[0]);
+        } catch (NumberFormatException ex) {
+            size = -1; // nil
+        }
+        if (parts.length != 3) {
+            return new RemoteHash(size, null, null);
+        }
+        return new RemoteHash(size, parts[1], parts[2]);
+    }
+
+    /**
+     * @return the size, -1 if the file does not exist
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Compare first size bytes of content with the remote file.
+     *
+     * @param content
+     * @return true if the esp file has the same content
+     * @throws IOException
+     */
+    public boolean matches(InputStream content) throws IOException {
+        if (algorithm == null) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+        byte[] buffer = new byte[8192];
+        long remaining = size;
+        while (remaining > 0) {
+            int read = content.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                return false; // local content is shorter
+            }
+            crc.update(buffer, 0, read);
+            md.update(buffer, 0, read);
+            remaining -= read;
+        }
+        return matches(crc, md);
+    }
+
+    /**
+     * Compare checksums of content received or read so far with the remote
+     * file, for callers which see the content only once.
+     *
+     * @param crc of the first size bytes
+     * @param sha1 of the same bytes, the digest is taken
+     * @return true if the esp file has the same content
+     */
+    public boolean matches(CRC32 crc, MessageDigest sha1) {
+        if (algorithm == null) {
+            return false;
+        }
+        switch (algorithm) {
+            case "sha1":
+                return hash.equalsIgnoreCase(Util.toHex(sha1.digest()));
+            case "crc32":
+                try {
+                    return (Long.parseLong(hash) & 0xFFFFFFFFL) == crc.getValue();
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.util.Arrays;
+
+/**
+ * Splits the output of the esp REPL into lines and prompts as it arrives.
+ *
+ * Every byte is looked at once. Lines end with \r\n, a prompt is a "> " or
+ * ">> " at the start of a line which is still open when the received batch
+ * ends. Prompts followed by a line end are the echo of an empty line and are
+ * dropped.
+ *
+ * @author Pawel Jasinski
+ */
+public class ReplLineParser {
+
+    public interface Listener {
+
+        void line(String line);
+
+        void prompt(String prompt);
+
+        /**
+         * A line consisting of the marker only.
+         */
+        void marker();
+    }
+
+    private final Listener listener;
+    private final byte[] marker;
+    private byte[] line = new byte[1024];
+    private int length;
+
+    public ReplLineParser(Listener listener, String marker) {
+        this.listener = listener;
+        this.marker = marker.getBytes();
+    }
+
+    /**
+     * Process one received batch.
+     */
+    public void feed(byte[] data, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            byte b = data[i];
+            if (b == '\n' && length > 0 && line[length - 1] == '\r') {
+                endLine(length - 1);
+                length = 0;
+                continue;
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = b;
+        }
+        if (isPrompt()) {
+            listener.prompt(new String(line, 0, length));
+            length = 0;
+        }
+    }
+
+    private void endLine(int end) {
+        if (end == 2 && line[0] == '>' && line[1] == ' '
+                || end == 3 && line[0] == '>' && line[1] == '>' && line[2] == ' ') {
+            return;
+        }
+        if (end == marker.length && startsWith(marker, end)) {
+            listener.marker();
+            return;
+        }
+        listener.line(new String(line, 0, end));
+    }
+
+    private boolean isPrompt() {
+        return length >= 2 && line[0] == '>'
+                && (line[1] == ' ' || length >= 3 && line[1] == '>' && line[2] == ' ');
+    }
+
+    private boolean startsWith(byte[] prefix, int end) {
+        if (end < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
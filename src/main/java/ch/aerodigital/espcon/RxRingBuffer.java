@@ -0,0 +1,117 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+/**
+ * Preallocated byte ring between the serial reader thread and the dispatcher.
+ *
+ * One thread writes, one thread reads, no locking: each side only moves its
+ * own position and publishes it through a volatile field.
+ *
+ * @author Pawel Jasinski
+ */
+public class RxRingBuffer {
+
+    private final byte[] ring;
+    private final int mask;
+    private final byte[] scratch;
+    private volatile long writePos;
+    private volatile long readPos;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public RxRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        ring = new byte[size];
+        mask = size - 1;
+        scratch = new byte[size];
+    }
+
+    public int capacity() {
+        return ring.length;
+    }
+
+    /**
+     * @return bytes ready to be read
+     */
+    public int available() {
+        return (int) (writePos - readPos);
+    }
+
+    /**
+     * @return bytes which can be written without overwriting unread data
+     */
+    public int free() {
+        return ring.length - available();
+    }
+
+    /**
+     * Writer side.
+     *
+     * @return number of bytes stored, less than len if the ring is full
+     */
+    public int write(byte[] src, int off, int len) {
+        long pos = writePos;
+        int n = Math.min(len, ring.length - (int) (pos - readPos));
+        int start = (int) pos & mask;
+        int first = Math.min(n, ring.length - start);
+        System.arraycopy(src, off, ring, start, first);
+        System.arraycopy(src, off + first, ring, 0, n - first);
+        writePos = pos + n;
+        return n;
+    }
+
+    /**
+     * Reader side.
+     *
+     * @return number of bytes copied to dst, 0 if nothing is available
+     */
+    public int read(byte[] dst, int off, int len) {
+        int n = peek(dst, off, len);
+        readPos += n;
+        return n;
+    }
+
+    /**
+     * Reader side, copies without consuming.
+     *
+     * @return number of bytes copied to dst
+     */
+    public int peek(byte[] dst, int off, int len) {
+        long pos = readPos;
+        int n = Math.min(len, (int) (writePos - pos));
+        int start = (int) pos & mask;
+        int first = Math.min(n, ring.length - start);
+        System.arraycopy(ring, start, dst, off, first);
+        System.arraycopy(ring, 0, dst, off + first, n - first);
+        return n;
+    }
+
+    /**
+     * Reader side, consumes bytes seen with peek.
+     */
+    public void skip(int n) {
+        readPos += Math.min(n, available());
+    }
+
+    /**
+     * Reader side, decodes with the platform charset like jssc does.
+     *
+     * @return up to byteCount bytes as string
+     */
+    public String readString(int byteCount) {
+        long pos = readPos;
+        int n = Math.min(byteCount, (int) (writePos - pos));
+        int start = (int) pos & mask;
+        String s;
+        if (start + n <= ring.length) {
+            s = new String(ring, start, n);
+            readPos = pos + n;
+        } else {
+            s = new String(scratch, 0, read(scratch, 0, n));
+        }
+        return s;
+    }
+}
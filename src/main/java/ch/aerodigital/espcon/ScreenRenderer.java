@@ -0,0 +1,141 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jline.builtins.ScreenTerminal;
+import org.jline.utils.AttributedString;
+import org.jline.utils.AttributedStringBuilder;
+import org.jline.utils.AttributedStyle;
+import org.jline.utils.Colors;
+
+/**
+ * Turns the content of the virtual screen into display lines.
+ *
+ * The screen is dumped into a buffer which lives as long as the size does.
+ * Rows which did not change since the last frame keep their line, only the
+ * others are built again, with colors and attributes.
+ *
+ * @author Pawel Jasinski
+ */
+public class ScreenRenderer {
+
+    // attribute bits of ScreenTerminal, 0xYXFFFBBB in the upper half
+    private static final int UNDERLINE = 0x01000000;
+    private static final int INVERSE = 0x02000000;
+    private static final int CONCEAL = 0x04000000;
+    private static final int BOLD = 0x08000000;
+    private static final int FG_SET = 0x10000000;
+    private static final int BG_SET = 0x20000000;
+
+    private final int maxColors;
+    private int rows;
+    private int columns;
+    private long[] screen = new long[0];
+    private long[] previous = new long[0];
+    private AttributedString[] lines = new AttributedString[0];
+    private final int[] cursor = new int[2];
+    private int lastAttr = 0;
+    private AttributedStyle lastStyle = AttributedStyle.DEFAULT;
+
+    /**
+     * @param maxColors colors of the real terminal
+     */
+    public ScreenRenderer(int maxColors) {
+        this.maxColors = maxColors;
+    }
+
+    /**
+     * @return one line per row, the list is new, the lines are shared
+     */
+    public List<AttributedString> render(ScreenTerminal terminal, int rows, int columns) {
+        if (rows != this.rows || columns != this.columns) {
+            this.rows = rows;
+            this.columns = columns;
+            screen = new long[rows * columns];
+            previous = new long[rows * columns];
+            lines = new AttributedString[rows];
+        }
+        Arrays.fill(screen, 0x00000020L);
+        terminal.dump(screen, 0, 0, rows, columns, cursor);
+        List<AttributedString> result = new ArrayList<>(rows + 1);
+        for (int y = 0; y < rows; y++) {
+            if (lines[y] == null || !sameRow(y)) {
+                lines[y] = renderRow(y);
+                System.arraycopy(screen, y * columns, previous, y * columns, columns);
+            }
+            result.add(lines[y]);
+        }
+        return result;
+    }
+
+    /**
+     * @return column and row of the cursor in the last render
+     */
+    public int[] getCursor() {
+        return cursor;
+    }
+
+    private boolean sameRow(int y) {
+        for (int i = y * columns; i < (y + 1) * columns; i++) {
+            if (screen[i] != previous[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private AttributedString renderRow(int y) {
+        AttributedStringBuilder sb = new AttributedStringBuilder(columns);
+        int attr = -1;
+        for (int x = 0; x < columns; x++) {
+            long d = screen[y * columns + x];
+            int a = (int) (d >>> 32);
+            if (a != attr) {
+                attr = a;
+                sb.style(style(a));
+            }
+            sb.append((char) (d & 0xffffffffL));
+        }
+        return sb.toAttributedString();
+    }
+
+    private AttributedStyle style(int a) {
+        // runs of the same attribute are common across rows too
+        if (a == lastAttr) {
+            return lastStyle;
+        }
+        AttributedStyle style = AttributedStyle.DEFAULT;
+        if ((a & BG_SET) != 0) {
+            style = style.background(color(a));
+        }
+        if ((a & FG_SET) != 0) {
+            style = style.foreground(color(a >>> 12));
+        }
+        if ((a & UNDERLINE) != 0) {
+            style = style.underline();
+        }
+        if ((a & INVERSE) != 0) {
+            style = style.inverse();
+        }
+        if ((a & CONCEAL) != 0) {
+            style = style.conceal();
+        }
+        if ((a & BOLD) != 0) {
+            style = style.bold();
+        }
+        lastAttr = a;
+        lastStyle = style;
+        return style;
+    }
+
+    /**
+     * @param rgb 4 bits per channel in the lowest 12 bits
+     */
+    private int color(int rgb) {
+        return Colors.roundRgbColor((rgb >> 8 & 0xf) * 17, (rgb >> 4 & 0xf) * 17, (rgb & 0xf) * 17, maxColors);
+    }
+}
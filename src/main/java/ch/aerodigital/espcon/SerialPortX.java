@@ -5,34 +5,91 @@
  */
 package ch.aerodigital.espcon;
 
-import java.util.Stack;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import jssc.SerialPort;
 import jssc.SerialPortEvent;
 import jssc.SerialPortEventListener;
 import jssc.SerialPortException;
 
 /**
+ * Serial port with a listener stack and its own receive path.
+ *
+ * A reader thread drains the port into a ring buffer as soon as jssc reports
+ * data. A dispatcher thread hands the buffered data to the listeners in
+ * batches: once rxBatch bytes are waiting or the oldest waiting byte is
+ * rxLatency old. Listeners see one RXCHAR event per batch and read it with
+ * readStringX or readBytesX. Other events are passed on by the dispatcher too,
+ * so listeners are always called from the same thread.
  *
  * @author rejap
  */
 public class SerialPortX extends SerialPort {
 
-    private SerialPortEventListenerX commonEventListener;
+    public static final int DEFAULT_RX_BATCH = 256;
+    public static final int DEFAULT_RX_LATENCY = 2; // ms
+    private static final int RX_BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private volatile SerialPortEventListenerX commonEventListener;
+
+    // told about listeners which threw, the dispatcher carries on
+    private volatile Consumer<RuntimeException> failureListener;
 
-    private final Stack<SerialPortEventListenerX> eventListeners;
+    // top of an immutable chain, push and pop swap it, dispatch only reads it
+    private final AtomicReference<ListenerNode> eventListeners;
 
     private boolean rts;
 
     private boolean dtr;
 
+    // kept up to date by events, reading the lines is a system call
+    private volatile boolean cts;
+    private volatile boolean dsr;
+
+    private final AtomicLong rxCount = new AtomicLong();
+    private final AtomicLong txCount = new AtomicLong();
+
+    private final RxRingBuffer rxBuffer;
+    private final ConcurrentLinkedQueue<SerialPortEvent> otherEvents;
+    private volatile int rxBatch = DEFAULT_RX_BATCH;
+    private volatile long rxLatency = TimeUnit.MILLISECONDS.toNanos(DEFAULT_RX_LATENCY);
+    private volatile boolean running;
+    private Thread readerThread;
+    private Thread dispatcherThread;
+
     public SerialPortX(String portName) {
         super(portName);
-        eventListeners = new Stack<>();
+        eventListeners = new AtomicReference<>();
+        rxBuffer = new RxRingBuffer(RX_BUFFER_SIZE);
+        otherEvents = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @param batch bytes which are handed to listeners without further waiting
+     * @param latency ms the first byte of a batch may wait for more
+     */
+    public void setRxCoalescing(int batch, int latency) {
+        rxBatch = Math.max(1, batch);
+        rxLatency = TimeUnit.MILLISECONDS.toNanos(latency);
+        LockSupport.unpark(dispatcherThread);
+    }
+
+    @Override
+    public boolean closePort() throws SerialPortException {
+        running = false;
+        LockSupport.unpark(readerThread);
+        LockSupport.unpark(dispatcherThread);
+        return super.closePort();
     }
 
     public boolean closePortX() {
         try {
-            boolean ret = super.closePort();
+            boolean ret = closePort();
             return ret;
         } catch (SerialPortException ex) {
             throw new SerialPortXException("exception in closePortX - " + ex.getMessage(), ex);
@@ -59,6 +116,15 @@ public class SerialPortX extends SerialPort {
         if (!ret) {
             throw new SerialPortXException("failed to set event mask");
         }
+        cts = isCTSX();
+        dsr = isDSRX();
+        running = true;
+        readerThread = new Thread(this::readLoop, "serial-rx-" + getPortName());
+        readerThread.setDaemon(true);
+        dispatcherThread = new Thread(this::dispatchLoop, "serial-dispatch-" + getPortName());
+        dispatcherThread.setDaemon(true);
+        readerThread.start();
+        dispatcherThread.start();
         addEventListenerX(new MasterEventListener());
     }
 
@@ -74,31 +140,158 @@ public class SerialPortX extends SerialPort {
         }
     }
 
+    private static final class ListenerNode {
+
+        final SerialPortEventListenerX listener;
+        final ListenerNode next;
+
+        ListenerNode(SerialPortEventListenerX listener, ListenerNode next) {
+            this.listener = listener;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Runs on the jssc event thread, only wakes up the reader and the
+     * dispatcher.
+     */
     private class MasterEventListener implements SerialPortEventListener {
 
         @Override
         public void serialEvent(SerialPortEvent event) {
-            boolean processed = false;
-            if (!eventListeners.empty()) {
-                processed = eventListeners.peek().serialEvent(event);
-            }
-            if (!processed && commonEventListener != null) {
-                commonEventListener.serialEvent(event);
+            if (event.isRXCHAR()) {
+                LockSupport.unpark(readerThread);
+            } else {
+                if (event.isCTS()) {
+                    cts = event.getEventValue() == 1;
+                } else if (event.isDSR()) {
+                    dsr = event.getEventValue() == 1;
+                }
+                otherEvents.add(event);
+                LockSupport.unpark(dispatcherThread);
             }
         }
     }
 
-    public String readStringX(int byteCount) {
+    private void readLoop() {
         try {
-            return super.readString(byteCount);
+            while (running) {
+                int count = Math.min(getInputBufferBytesCount(), rxBuffer.free());
+                if (count <= 0) {
+                    // woken up by the event listener, the timeout is a safety net
+                    LockSupport.parkNanos(rxBuffer.free() == 0 ? rxLatency : IDLE_PARK);
+                    continue;
+                }
+                byte[] data = readBytes(count);
+                rxBuffer.write(data, 0, data.length);
+                rxCount.addAndGet(data.length);
+                LockSupport.unpark(dispatcherThread);
+            }
         } catch (SerialPortException ex) {
-            throw new SerialPortXException("exception in readStringX - " + ex.getMessage(), ex);
+            // port is gone, next write reports it
+            running = false;
+        }
+    }
+
+    private void dispatchLoop() {
+        long pendingSince = 0;
+        int unread = -1; // left over by the listeners in the last batch
+        ListenerNode unreadBy = null;
+        while (running) {
+            SerialPortEvent event;
+            while ((event = otherEvents.poll()) != null) {
+                dispatch(event);
+            }
+            int available = rxBuffer.available();
+            if (available == 0 || (available == unread && unreadBy == eventListeners.get())) {
+                pendingSince = 0;
+                LockSupport.parkNanos(IDLE_PARK);
+                continue;
+            }
+            unread = -1;
+            long now = System.nanoTime();
+            if (pendingSince == 0) {
+                pendingSince = now;
+            }
+            long waited = now - pendingSince;
+            if (available < rxBatch && waited < rxLatency) {
+                LockSupport.parkNanos(rxLatency - waited);
+                continue;
+            }
+            pendingSince = 0;
+            ListenerNode top = eventListeners.get();
+            dispatch(new SerialPortEvent(getPortName(), SerialPortEvent.RXCHAR, available));
+            LockSupport.unpark(readerThread); // there is room again
+            if (rxBuffer.available() == available) {
+                // offer it again once more data arrives or the listener changes
+                unread = available;
+                unreadBy = top;
+            }
         }
     }
 
+    private void dispatch(SerialPortEvent event) {
+        try {
+            boolean processed = false;
+            ListenerNode top = eventListeners.get();
+            if (top != null) {
+                processed = top.listener.serialEvent(event);
+            }
+            SerialPortEventListenerX common = commonEventListener;
+            if (!processed && common != null) {
+                common.serialEvent(event);
+            }
+        } catch (RuntimeException ex) {
+            // keep dispatching, the listener is broken, not the port
+            Consumer<RuntimeException> failure = failureListener;
+            if (failure != null) {
+                failure.accept(ex);
+            }
+        }
+    }
+
+    /**
+     * Reads buffered data, never blocks.
+     *
+     * @param byteCount at most this many bytes, usually the event value
+     * @return received data
+     */
+    public String readStringX(int byteCount) {
+        return rxBuffer.readString(byteCount);
+    }
+
+    /**
+     * Reads buffered data into a caller owned array, never blocks.
+     *
+     * @return number of bytes copied
+     */
+    public int readBytesX(byte[] dst, int off, int len) {
+        return rxBuffer.read(dst, off, len);
+    }
+
+    /**
+     * Like readBytesX but leaves the data buffered, see skipBytesX.
+     *
+     * @return number of bytes copied
+     */
+    public int peekBytesX(byte[] dst, int off, int len) {
+        return rxBuffer.peek(dst, off, len);
+    }
+
+    /**
+     * Consumes data seen with peekBytesX, the rest is offered to the next
+     * listener.
+     */
+    public void skipBytesX(int byteCount) {
+        rxBuffer.skip(byteCount);
+    }
+
     public void writeStringX(String string) {
         try {
-            boolean ret = super.writeString(string);
+            // encoded once, as jssc writeString does, so the count is in bytes
+            byte[] bytes = string.getBytes();
+            txCount.addAndGet(bytes.length);
+            boolean ret = super.writeBytes(bytes);
             if (!ret) {
                 throw new SerialPortXException("writeStringX failed");
             }
@@ -109,6 +302,7 @@ public class SerialPortX extends SerialPort {
 
     public void writeBytesX(byte[] bytes) {
         try {
+            txCount.addAndGet(bytes.length);
             boolean ret = super.writeBytes(bytes);
             if (!ret) {
                 throw new SerialPortXException("writeBytesX failed");
@@ -120,7 +314,9 @@ public class SerialPortX extends SerialPort {
 
     public void writeStringX(String string, String context) {
         try {
-            boolean ret = super.writeString(string);
+            byte[] bytes = string.getBytes();
+            txCount.addAndGet(bytes.length);
+            boolean ret = super.writeBytes(bytes);
             if (!ret) {
                 throw new SerialPortXException("writeStringX failed [" + context + "] ");
             }
@@ -190,17 +386,70 @@ public class SerialPortX extends SerialPort {
 
 
     public void pushEventListener(SerialPortEventListenerX listener) {
-        eventListeners.push(listener);
+        ListenerNode top;
+        do {
+            top = eventListeners.get();
+        } while (!eventListeners.compareAndSet(top, new ListenerNode(listener, top)));
+        LockSupport.unpark(dispatcherThread);
     }
 
-    public void popEventListener() {
-        eventListeners.pop();
+    /**
+     * Removes the listener if it is the top one.
+     *
+     * @return false if the listener is not on top, nothing is removed
+     */
+    public boolean popEventListener(SerialPortEventListenerX listener) {
+        ListenerNode top;
+        do {
+            top = eventListeners.get();
+            if (top == null || top.listener != listener) {
+                return false;
+            }
+        } while (!eventListeners.compareAndSet(top, top.next));
+        LockSupport.unpark(dispatcherThread);
+        return true;
     }
 
     public void installCommonEventListener(SerialPortEventListenerX listener) {
         commonEventListener = listener;
     }
 
+    /**
+     * @param listener called on the dispatcher thread with what a listener
+     * threw
+     */
+    public void installFailureListener(Consumer<RuntimeException> listener) {
+        failureListener = listener;
+    }
+
+    /**
+     * @return clear to send, as reported by the last event
+     */
+    public boolean isCts() {
+        return cts;
+    }
+
+    /**
+     * @return data set ready, as reported by the last event
+     */
+    public boolean isDsr() {
+        return dsr;
+    }
+
+    /**
+     * @return bytes received since the port was opened
+     */
+    public long getRxCount() {
+        return rxCount.get();
+    }
+
+    /**
+     * @return bytes sent since the port was opened
+     */
+    public long getTxCount() {
+        return txCount.get();
+    }
+
     /**
      * @return the rts
      */
@@ -0,0 +1,161 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import static ch.aerodigital.espcon.App.serialPort;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import jssc.SerialPortEvent;
+
+/**
+ * Runs an upload only if the target on the esp differs from the local file.
+ *
+ * The esp reports size of the target and, if the size matches, its hash (see
+ * RemoteHash).
+ *
+ * @author Pawel Jasinski
+ */
+public class SkipUnchangedCommandExecutor extends AbstractCommandExecutor {
+
+    private final AbstractFileUploadCommandExecutor upload;
+
+    private enum State {
+        IDLE,
+        LUA_TRANSFER,
+        WAIT_HASH,
+        WAIT_PROMPT
+    }
+
+    private State state;
+    private ArrayList<String> luaCodeBuffer;
+    private int sendIndex;
+
+    private long size;
+    private boolean unchanged;
+
+    public SkipUnchangedCommandExecutor(AbstractFileUploadCommandExecutor upload) {
+        this.upload = upload;
+        state = State.IDLE;
+    }
+
+    @Override
+    public void setWriter(PrintWriter writer) {
+        super.setWriter(writer);
+        upload.setWriter(writer);
+    }
+
+    @Override
+    public void setCompletionListener(CommandCompletionListener listener) {
+        super.setCompletionListener(listener);
+        upload.setCompletionListener(listener);
+    }
+
+    @Override
+    public void start() throws InvalidCommandException {
+        try (InputStream is = upload.openContent()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            size = 0;
+            while ((read = is.read(buffer)) > 0) {
+                size += read;
+            }
+        } catch (IOException ex) {
+            throw new InvalidCommandException("Unable to read: " + upload.getSrc());
+        }
+        luaCodeBuffer = RemoteHash.request(upload.getTarget(), size);
+        listen(new SerialPortSink());
+        sendIndex = 0;
+        state = State.LUA_TRANSFER;
+        sendNext();
+    }
+
+    private void sendNext() {
+        serialPort.writeStringX(luaCodeBuffer.get(sendIndex) + "\r");
+        sendIndex++;
+        if (sendIndex == luaCodeBuffer.size()) {
+            state = State.WAIT_HASH;
+        }
+    }
+
+    private boolean sameContent(RemoteHash remote) {
+        if (remote.getSize() != size) {
+            return false;
+        }
+        try (InputStream is = upload.openContent()) {
+            return remote.matches(is);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private void complete() {
+        if (unchanged) {
+            writer.println(upload.getTarget() + " unchanged, upload skipped");
+            finish(true, upload.getAfterUploadLua());
+            return;
+        }
+        stopListening();
+        try {
+            upload.start();
+        } catch (InvalidCommandException ex) {
+            writer.println(ex.getMessage());
+            // the upload never started, report on its behalf
+            handOver(false, "");
+        }
+    }
+
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener {
+
+        // start marker only delimits text()
+        private static final int PROMPT = 0;
+        private static final int HASH_START = 1;
+        private static final int HASH_END = 2;
+        private final MarkerMatcher matcher;
+
+        public SerialPortSink() {
+            matcher = new MarkerMatcher(this, "> ", RemoteHash.START_MARKER, RemoteHash.END_MARKER);
+        }
+
+        @Override
+        public boolean serialEvent(SerialPortEvent event) {
+            if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+                return false;
+            }
+            matcher.feed(serialPort);
+            return true;
+        }
+
+        @Override
+        public boolean marker(int marker) {
+            switch (state) {
+                case IDLE:
+                    writer.println("unexpected data when in idle: " + matcher.text());
+                    break;
+                case LUA_TRANSFER:
+                    if (marker == PROMPT) {
+                        sendNext();
+                    }
+                    break;
+                case WAIT_HASH:
+                    if (marker == HASH_END) {
+                        unchanged = sameContent(RemoteHash.parse(matcher.text()));
+                        state = State.WAIT_PROMPT;
+                    }
+                    break;
+                case WAIT_PROMPT:
+                    // the next executor must not see this prompt
+                    if (marker == PROMPT) {
+                        complete();
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import static ch.aerodigital.espcon.App.serialPort;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import jssc.SerialPortEvent;
+
+/**
+ * Upload new and changed files of a local directory.
+ *
+ * Files are hashed in parallel and compared with SyncManifest entries for the
+ * connected esp (identified by node.chipid()), what differs is uploaded one
+ * after the other with FileUploadCommandExecutor. Hidden files are skipped,
+ * subdirectories become part of the target name (a/b.lua).
+ *
+ * @author Pawel Jasinski
+ */
+public class SyncCommandExecutor extends AbstractCommandExecutor {
+
+    private final Path dir;
+
+    private enum State {
+        IDLE,
+        WAIT_ID,
+        WAIT_PROMPT
+    }
+
+    private State state;
+
+    private static class LocalFile {
+
+        final Path path;
+        final String target;
+        long size;
+        String sha1;
+
+        LocalFile(Path path, String target) {
+            this.path = path;
+            this.target = target;
+        }
+    }
+
+    private SyncManifest manifest;
+    private List<LocalFile> files;
+    private final ArrayDeque<LocalFile> pending = new ArrayDeque<>();
+    private String deviceId;
+    private int total;
+    private int failed;
+
+    public SyncCommandExecutor(String command) throws InvalidCommandException {
+        String args[] = command.split("\\s+");
+        if (args.length != 2) {
+            throw new InvalidCommandException("sync needs 1 argument");
+        }
+        dir = Paths.get(args[1]);
+        state = State.IDLE;
+    }
+
+    @Override
+    public void start() throws InvalidCommandException {
+        if (!Files.isDirectory(dir)) {
+            throw new InvalidCommandException("not a directory: " + dir);
+        }
+        try {
+            manifest = new SyncManifest(dir);
+            try (Stream<Path> walk = Files.walk(dir)) {
+                files = walk.filter(Files::isRegularFile)
+                        .map(dir::relativize)
+                        .filter(SyncCommandExecutor::isVisible)
+                        .map(p -> new LocalFile(dir.resolve(p), targetName(p)))
+                        .collect(Collectors.toList());
+            }
+            files.parallelStream().forEach(SyncCommandExecutor::hash);
+        } catch (IOException | UncheckedIOException ex) {
+            throw new InvalidCommandException("unable to read " + dir + ": " + ex.getMessage());
+        }
+        listen(new SerialPortSink());
+        state = State.WAIT_ID;
+        serialPort.writeStringX("print('~~~ID-'..'START~~~'..node.chipid()..'~~~ID-'..'END~~~')\n");
+    }
+
+    private static boolean isVisible(Path relative) {
+        for (Path element : relative) {
+            if (element.toString().startsWith(".")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String targetName(Path relative) {
+        StringBuilder sb = new StringBuilder();
+        for (Path element : relative) {
+            if (sb.length() > 0) {
+                sb.append('/');
+            }
+            sb.append(element);
+        }
+        return sb.toString();
+    }
+
+    private static void hash(LocalFile file) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        byte[] buffer = new byte[8192];
+        long size = 0;
+        try (InputStream is = Files.newInputStream(file.path)) {
+            int read;
+            while ((read = is.read(buffer)) > 0) {
+                md.update(buffer, 0, read);
+                size += read;
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        file.size = size;
+        file.sha1 = Util.toHex(md.digest());
+    }
+
+    private void startUploads() {
+        for (LocalFile file : files) {
+            if (!manifest.isCurrent(deviceId, file.target, file.size, file.sha1)) {
+                pending.add(file);
+            }
+        }
+        total = pending.size();
+        failed = 0;
+        writer.println("sync " + dir + ": " + total + " of " + files.size() + " file(s) to upload");
+        uploadNext();
+    }
+
+    private void uploadNext() {
+        setProgress(total - pending.size(), total);
+        LocalFile file = pending.poll();
+        if (file == null) {
+            if (failed > 0) {
+                writer.println("sync " + dir + ": " + failed + " upload(s) failed");
+            }
+            handOver(failed == 0, "");
+            return;
+        }
+        writer.println("(" + (total - pending.size()) + "/" + total + ") " + file.target);
+        FileUploadCommandExecutor ce = new FileUploadCommandExecutor(file.path.toString(), file.target);
+        ce.setWriter(writer);
+        ce.setCompletionListener(success -> uploaded(file, success));
+        try {
+            ce.start();
+        } catch (InvalidCommandException ex) {
+            writer.println(ex.getMessage());
+            uploaded(file, false);
+        }
+    }
+
+    private void uploaded(LocalFile file, boolean success) {
+        if (success) {
+            manifest.update(deviceId, file.target, file.size, file.sha1);
+            try {
+                // after every file, an interrupted sync keeps what is done
+                manifest.save();
+            } catch (IOException ex) {
+                writer.println("unable to save manifest: " + ex.getMessage());
+            }
+        } else {
+            failed++;
+        }
+        uploadNext();
+    }
+
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener {
+
+        // start marker only delimits text()
+        private static final int PROMPT = 0;
+        private static final int ID_START = 1;
+        private static final int ID_END = 2;
+        private final MarkerMatcher matcher;
+
+        public SerialPortSink() {
+            matcher = new MarkerMatcher(this, "> ", "~~~ID-START~~~", "~~~ID-END~~~");
+        }
+
+        @Override
+        public boolean serialEvent(SerialPortEvent event) {
+            if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+                return false;
+            }
+            matcher.feed(serialPort);
+            return true;
+        }
+
+        @Override
+        public boolean marker(int marker) {
+            switch (state) {
+                case IDLE:
+                    writer.println("unexpected data when in idle: " + matcher.text());
+                    break;
+                case WAIT_ID:
+                    if (marker == ID_END) {
+                        deviceId = matcher.text();
+                        state = State.WAIT_PROMPT;
+                    }
+                    break;
+                case WAIT_PROMPT:
+                    // the uploads must not see this prompt
+                    if (marker == PROMPT) {
+                        removeSink();
+                        startUploads();
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * What was uploaded to which esp, kept next to the synchronized files.
+ *
+ * One entry per device and file: key is chipid/path, value is size:sha1.
+ *
+ * @author Pawel Jasinski
+ */
+public class SyncManifest {
+
+    public static final String FILE_NAME = ".espcon-manifest";
+
+    private final Path file;
+    private final Properties entries = new Properties();
+
+    public SyncManifest(Path dir) throws IOException {
+        file = dir.resolve(FILE_NAME);
+        try (InputStream is = Files.newInputStream(file)) {
+            entries.load(is);
+        } catch (NoSuchFileException ex) {
+            // first sync of this directory
+        }
+    }
+
+    private static String key(String deviceId, String path) {
+        return deviceId + "/" + path;
+    }
+
+    private static String value(long size, String sha1) {
+        return size + ":" + sha1;
+    }
+
+    public boolean isCurrent(String deviceId, String path, long size, String sha1) {
+        return value(size, sha1).equals(entries.getProperty(key(deviceId, path)));
+    }
+
+    public void update(String deviceId, String path, long size, String sha1) {
+        entries.setProperty(key(deviceId, path), value(size, sha1));
+    }
+
+    public void save() throws IOException {
+        try (OutputStream os = Files.newOutputStream(file)) {
+            entries.store(os, "espcon sync manifest, chipid/path=size:sha1");
+        }
+    }
+}
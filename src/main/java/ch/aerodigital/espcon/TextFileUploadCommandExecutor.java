@@ -5,20 +5,27 @@ package ch.aerodigital.espcon;
 
 import static ch.aerodigital.espcon.App.serialPort;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
 import jssc.SerialPortEvent;
 
 /**
+ * Writes a text file line by line with file.writeline. As many w(...) calls
+ * as fit go into one REPL line, so a prompt is waited for per batch of
+ * lines, not per line.
  *
  * @author Pawel Jasinski
  */
-public class TextFileUploadCommandExecutor extends AbstractCommandExecutor {
+public class TextFileUploadCommandExecutor extends AbstractFileUploadCommandExecutor {
+
+    // LUA_MAXINPUT of the REPL is 256 with line end and the terminating 0
+    private static final int MAX_LINE_BYTES = 250;
 
-    private String src;
-    private String target;
     private boolean autoRun;
 
     private enum State {
@@ -32,19 +39,12 @@ public class TextFileUploadCommandExecutor extends AbstractCommandExecutor {
     private State state;
 
     private BufferedReader srcFileReader;
+    private boolean failed;
+    private long srcLength;
+    private Batches batches;
 
     public TextFileUploadCommandExecutor(String command) throws InvalidCommandException {
-        String args[] = command.split("\\s+");
-        if (args.length == 1 || args.length > 3) {
-            throw new InvalidCommandException("upload needs 1 or 2 arguments");
-        }
-        if (args.length == 2) {
-            src = args[1];
-            target = args[1];
-        } else {
-            src = args[1];
-            target = args[2];
-        }
+        super(command);
         state = State.IDLE;
     }
 
@@ -53,15 +53,17 @@ public class TextFileUploadCommandExecutor extends AbstractCommandExecutor {
         File srcFile = new File(src);
         try {
             srcFileReader = new BufferedReader(new FileReader(srcFile));
+            srcLength = srcFile.length();
+            batches = new Batches(srcFileReader, MAX_LINE_BYTES);
         } catch (FileNotFoundException ex) {
             throw new InvalidCommandException("Unable to open: " + src);
         }
         String lua = ""
                 + "file.remove('" + target + "') "
                 + "file.open('" + target + "','w+') "
-                + "w=file.writeline\n";
+                + "w=file.writeline W=file.write\n";
         // writer.println(lua);
-        serialPort.pushEventListener(new SerialPortSink());
+        listen(new SerialPortSink());
         state = State.LUA_TRANSFER;
         serialPort.writeStringX(lua);
     }
@@ -78,69 +80,155 @@ public class TextFileUploadCommandExecutor extends AbstractCommandExecutor {
         serialPort.writeStringX(cmd);
     }
 
-    private void sendNextLine() {
+    private void sendNextLines() {
+        String batch;
         try {
-            String line = srcFileReader.readLine();
-            if (line == null) {
-                writer.println(); // after the progress dots
-                completeTransfer(autoRun);
-            } else {
-                //writer.println("w([==[" + line + "]==]);");
-                serialPort.writeStringX("w([==[" + line + "]==]);\n");
-                writer.print(".");
-                writer.flush();
-            }
+            batch = batches.next();
         } catch (IOException ex) {
             writer.println("unable to read file: " + src);
+            failed = true;
             completeTransfer(false);
+            return;
+        }
+        if (batch == null) {
+            writer.println(); // after the progress dots
+            completeTransfer(autoRun);
+            return;
+        }
+        setProgress(batches.done(), srcLength);
+        serialPort.writeStringX(batch);
+        writer.print(".");
+        writer.flush();
+    }
+
+    /**
+     * REPL lines writing the lines of a text. As many w(...) calls as fit go
+     * into one REPL line, a line too long for one is written in parts, W for
+     * all but the last one which gets the line end with w.
+     */
+    static class Batches {
+
+        private final BufferedReader reader;
+        private final int maxBytes;
+        private String pendingLine; // read, did not fit into the previous batch
+        private final ArrayDeque<String> pieces = new ArrayDeque<>(); // of a line too long for one batch
+        private long done;
+
+        /**
+         * @param maxBytes max REPL line length without the line end
+         */
+        Batches(BufferedReader reader, int maxBytes) {
+            this.reader = reader;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * @return chars of the text taken so far, line ends counted as one
+         */
+        long done() {
+            return done;
+        }
+
+        /**
+         * @return next REPL line with line end, null after the last one
+         */
+        String next() throws IOException {
+            if (!pieces.isEmpty()) {
+                return pieces.poll();
+            }
+            StringBuilder batch = new StringBuilder();
+            int batchBytes = 0;
+            int lines = 0;
+            String line;
+            while ((line = pendingLine != null ? pendingLine : reader.readLine()) != null) {
+                pendingLine = null;
+                String call = "w(" + Util.longString(line) + ")";
+                int callBytes = call.getBytes().length;
+                if (lines > 0 && batchBytes + callBytes > maxBytes) {
+                    pendingLine = line;
+                    break;
+                }
+                done += line.length() + 1;
+                lines++;
+                if (callBytes > maxBytes) {
+                    split(line);
+                    return pieces.poll();
+                }
+                batch.append(call);
+                batchBytes += callBytes;
+            }
+            return lines == 0 ? null : batch.append('\n').toString();
+        }
+
+        private void split(String line) {
+            int start = 0;
+            while (start < line.length()) {
+                // whole code points up to the budget, W([[ ]]) around
+                int end = start;
+                int bytes = 7;
+                while (end < line.length()) {
+                    int next = end + Character.charCount(line.codePointAt(end));
+                    int charBytes = line.substring(end, next).getBytes().length;
+                    if (bytes + charBytes > maxBytes) {
+                        break;
+                    }
+                    bytes += charBytes;
+                    end = next;
+                }
+                String call = call(line, start, end);
+                // a ]] in the part needs a longer bracket
+                while (call.getBytes().length > maxBytes) {
+                    end = line.offsetByCodePoints(end, -1);
+                    call = call(line, start, end);
+                }
+                pieces.add(call + "\n");
+                start = end;
+            }
+        }
+
+        private static String call(String line, int start, int end) {
+            return (end < line.length() ? "W(" : "w(") + Util.longString(line.substring(start, end)) + ")";
         }
     }
 
-    private class SerialPortSink implements SerialPortEventListenerX {
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener {
 
-        private String dataCollector;
+        private final MarkerMatcher matcher;
 
         public SerialPortSink() {
-            dataCollector = "";
+            matcher = new MarkerMatcher(this, "> ");
         }
 
         @Override
         public boolean serialEvent(SerialPortEvent event) {
             if (!event.isRXCHAR() || event.getEventValue() <= 0) {
                 return false;
-            }            dataCollector = dataCollector + serialPort.readStringX(event.getEventValue());
-            int promptPos;
+            }
+            if (matcher.feed(serialPort) && state == State.AUTORUN) {
+                // output of the script
+                writer.print(matcher.takeText());
+                writer.flush();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean marker(int marker) {
             switch (state) {
                 case IDLE:
-                    writer.println("unexpected data when in idle: " + dataCollector);
+                    writer.println("unexpected data when in idle: " + matcher.text());
                     break;
                 case LUA_TRANSFER:
                 case FILE_TRANSFER:
-                    promptPos = dataCollector.indexOf("> ");
-                    if (-1 != promptPos) {
-                        dataCollector = dataCollector.substring(promptPos + 2);
-                        sendNextLine();
-                    }
+                    sendNextLines();
                     break;
                 case END:
-                    promptPos = dataCollector.indexOf("> ");
-                    if (-1 != promptPos) {
-                        dataCollector = dataCollector.substring(promptPos + 2);
-                        serialPort.popEventListener();
-                        serialPort.writeStringX("\n");
-                    }
-                    break;
+                    finish(!failed);
+                    return false;
                 case AUTORUN:
-                    promptPos = dataCollector.indexOf("> ");
-                    if (-1 != promptPos) {
-                        dataCollector = dataCollector.substring(promptPos + 2);
-                        serialPort.popEventListener();
-                        serialPort.writeStringX("\n");
-                    }
-                    writer.print(dataCollector);
-                    dataCollector = "";
-                    break;
-
+                    writer.print(matcher.text());
+                    finish(!failed);
+                    return false;
                 default:
                     break;
             }
@@ -148,6 +236,26 @@ public class TextFileUploadCommandExecutor extends AbstractCommandExecutor {
         }
     }
 
+    /**
+     * Every line is written with file.writeline, line ends become \n.
+     */
+    @Override
+    public InputStream openContent() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new FileReader(src))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+        }
+        return new ByteArrayInputStream(sb.toString().getBytes());
+    }
+
+    @Override
+    public String getAfterUploadLua() {
+        return autoRun ? "dofile('" + target + "')" : "";
+    }
+
     /**
      * @param autoRun the autoRun to set
      */
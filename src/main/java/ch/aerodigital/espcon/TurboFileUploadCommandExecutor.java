@@ -0,0 +1,306 @@
+/*
+ *
+ */
+package ch.aerodigital.espcon;
+
+import static ch.aerodigital.espcon.App.baud;
+import static ch.aerodigital.espcon.App.echo;
+import static ch.aerodigital.espcon.App.serialPort;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import jssc.SerialPortEvent;
+
+/**
+ * Binary safe variant of the turbo upload.
+ *
+ * The esp splits input on \r, so \r and the escape character itself are sent
+ * as two byte escape sequences. End of file is an escape sequence which never
+ * appears in escaped data.
+ *
+ * In compressed mode the file is sent as LzCompressor tokens, a chunk always
+ * carries complete tokens and the esp expands them before writing.
+ *
+ * @author Pawel Jasinski
+ */
+public class TurboFileUploadCommandExecutor extends AbstractFileUploadCommandExecutor {
+
+
+    private enum State {
+        IDLE,
+        BUF_TRANSFER,
+        WAIT_SIZE,
+    }
+
+    private State state;
+
+    private static final int CHUNK_SIZE = 255; // including the \r terminator
+    private static final byte ESC = 0x10;
+    private static final byte ESC_CR = 0x01;
+    private static final byte ESC_ESC = 0x02;
+    private static final byte ESC_EOF = 0x03;
+    private static final String DONE_MARKER = "\r\n--Done--";
+
+    private ArrayList<byte[]> luaBuffer;
+    private int sendIndex;
+    private ReadAheadFile srcFile;
+    private long srcSize;
+    private long srcDone; // source bytes escaped so far
+    // chunks alternate, one is on the wire while the other is prepared
+    private final byte[][] chunks = {new byte[CHUNK_SIZE], new byte[CHUNK_SIZE]};
+    private int chunkIndex;
+    private boolean eofSent;
+    private byte[] pending; // next thing to send, null when all is sent
+    private boolean compressed;
+    private LzCompressor compressor;
+    private byte[] pendingToken; // token which did not fit into previous chunk
+    private long wireBytes;
+
+    public TurboFileUploadCommandExecutor(String command) throws InvalidCommandException {
+        super(command);
+        state = State.IDLE;
+        luaBuffer = new ArrayList<>();
+    }
+
+    @Override
+    public void start() throws InvalidCommandException {
+        String lua1 = ""
+                + "F='" + target + "' "
+                + "file.remove(F) "
+                + "file.open(F,'w+') "
+                + "F=nil "
+                + "_n=0 "
+                + "_d=nil "
+                + "uart.setup(0," + baud + ",8,0,1,0)\n";
+        String lua2 = ""
+                + "rcv=function(b) "
+                + "  if b=='\\16\\3\\r' then"
+                + "    uart.on('data')"
+                + "    file.close()"
+                + "    rcv=nil"
+                + "    uart.setup(0," + baud + ",8,0,1," + echo + ")\n";
+        String lua3 = ""
+                + "    print('\\r\\n--Done--'.._n..'\\r\\n> ')"
+                + "    _n=nil"
+                + "    _d=nil"
+                + "    _h=nil"
+                + "    collectgarbage()\n";
+        String lua4 = ""
+                + "  else"
+                + "    b=b:sub(1,-2):gsub('\\16.',{['\\16\\1']='\\r',['\\16\\2']='\\16'})"
+                + "    if _d then b=_d(b) end"
+                + "    file.write(b)"
+                + "    _n=_n+#b"
+                + "    uart.write(0,'> ')"
+                + "  end "
+                + "end "
+                + "uart.on('data','\\r',rcv,0)\n";
+        luaBuffer.add(lua1.getBytes());
+        if (compressed) {
+            for (String line : LuaPacker.pack(LzCompressor.luaDecoder())) {
+                luaBuffer.add((line + "\n").getBytes());
+            }
+        }
+        luaBuffer.add(lua2.getBytes());
+        luaBuffer.add(lua3.getBytes());
+        luaBuffer.add(lua4.getBytes());
+        try {
+            if (compressed) {
+                // the compressor looks back and ahead, the file is held in memory
+                byte[] content = Files.readAllBytes(Paths.get(src));
+                srcSize = content.length;
+                compressor = new LzCompressor(content);
+            } else {
+                srcFile = new ReadAheadFile(src);
+                srcSize = srcFile.size();
+            }
+        } catch (IOException ex) {
+            throw new InvalidCommandException("Unable to open src: " + src);
+        }
+        pendingToken = null;
+        wireBytes = 0;
+        srcDone = 0;
+        sendIndex = 0;
+        chunkIndex = 0;
+        eofSent = false;
+        try {
+            pending = loadNext();
+        } catch (IOException ex) {
+            if (srcFile != null) {
+                Util.close(srcFile);
+            }
+            throw new InvalidCommandException("Failed to read file chunk" + ex);
+        }
+        listen(new SerialPortSink());
+        state = State.BUF_TRANSFER;
+        sendNext();
+    }
+
+    private void sendNext() {
+        if (pending == null) {
+            return;
+        }
+        serialPort.writeBytesX(pending);
+        setProgress(compressed ? compressor.position() : srcDone, srcSize);
+        // prepare the following chunk while the esp digests this one
+        try {
+            pending = loadNext();
+        } catch (IOException ex) {
+            writer.println("Failed to read file chunk " + ex);
+            // terminate the file on the esp, the size check reports the damage
+            pending = eofMarker();
+        }
+    }
+
+    /**
+     * @return lua chunk, escaped file chunk terminated with \r, eof marker, or
+     * null
+     * @throws IOException
+     */
+    private byte[] loadNext() throws IOException {
+        if (sendIndex < luaBuffer.size()) {
+            return luaBuffer.get(sendIndex++);
+        }
+        if (eofSent) {
+            return null;
+        }
+        byte[] chunk = chunks[chunkIndex];
+        int len = compressed ? readCompressedChunk(chunk, CHUNK_SIZE - 1) : readEscapedChunk(chunk, CHUNK_SIZE - 1);
+        if (len == 0) {
+            return eofMarker();
+        }
+        wireBytes += len;
+        chunkIndex ^= 1;
+        chunk[len] = '\r';
+        return len == CHUNK_SIZE - 1 ? chunk : Arrays.copyOf(chunk, len + 1);
+    }
+
+    private byte[] eofMarker() {
+        eofSent = true;
+        if (srcFile != null) {
+            Util.close(srcFile);
+        }
+        return new byte[]{ESC, ESC_EOF, '\r'};
+    }
+
+    /**
+     * Fill chunk with escaped file content, escape sequences are never split.
+     */
+    private int readEscapedChunk(byte[] chunk, int size) throws IOException {
+        int n = 0;
+        while (n < size && srcFile.hasNext()) {
+            byte b = srcFile.peek();
+            if (b == '\r' || b == ESC) {
+                if (n + 2 > size) {
+                    break;
+                }
+                chunk[n++] = ESC;
+                chunk[n++] = b == ESC ? ESC_ESC : ESC_CR;
+            } else {
+                chunk[n++] = b;
+            }
+            srcFile.skip();
+            srcDone++;
+        }
+        return n;
+    }
+
+    /**
+     * Fill chunk with escaped complete compressed tokens.
+     */
+    private int readCompressedChunk(byte[] chunk, int size) {
+        int n = 0;
+        for (;;) {
+            if (pendingToken == null) {
+                if (!compressor.hasNext()) {
+                    break;
+                }
+                pendingToken = compressor.next();
+            }
+            int escapedLength = pendingToken.length;
+            for (byte b : pendingToken) {
+                if (b == '\r' || b == ESC) {
+                    escapedLength++;
+                }
+            }
+            if (n + escapedLength > size) {
+                break;
+            }
+            for (byte b : pendingToken) {
+                if (b == '\r' || b == ESC) {
+                    chunk[n++] = ESC;
+                    chunk[n++] = b == ESC ? ESC_ESC : ESC_CR;
+                } else {
+                    chunk[n++] = b;
+                }
+            }
+            pendingToken = null;
+        }
+        return n;
+    }
+
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener {
+
+        private static final int PROMPT = 0;
+        private static final int LINE_PROMPT = 1;
+        private static final int DONE = 2;
+        private final MarkerMatcher matcher;
+
+        public SerialPortSink() {
+            matcher = new MarkerMatcher(this, "> ", "\r\n> ", DONE_MARKER);
+        }
+
+        @Override
+        public boolean serialEvent(SerialPortEvent event) {
+            if (!event.isRXCHAR() || event.getEventValue() <= 0) {
+                return false;
+            }
+            matcher.feed(serialPort);
+            return true;
+        }
+
+        @Override
+        public boolean marker(int marker) {
+            switch (state) {
+                case IDLE:
+                    writer.println("unexpected data when in idle: " + matcher.text());
+                    break;
+                case BUF_TRANSFER:
+                    if (marker == DONE) {
+                        state = State.WAIT_SIZE;
+                    } else {
+                        writer.print(".");
+                        writer.flush();
+                        sendNext();
+                    }
+                    break;
+                case WAIT_SIZE:
+                    if (marker == LINE_PROMPT) {
+                        writer.println(); // after dots
+                        String written = matcher.text();
+                        boolean sizeOk = written.equals(Long.toString(srcSize));
+                        if (!sizeOk) {
+                            writer.println("size mismatch, sent " + srcSize + " bytes, esp wrote " + written);
+                        } else if (compressed) {
+                            writer.println(srcSize + " bytes sent as " + wireBytes);
+                        }
+                        finish(sizeOk);
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param compressed the compressed to set
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+}
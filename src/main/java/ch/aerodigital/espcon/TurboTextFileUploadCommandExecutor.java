@@ -6,10 +6,7 @@ package ch.aerodigital.espcon;
 import static ch.aerodigital.espcon.App.baud;
 import static ch.aerodigital.espcon.App.echo;
 import static ch.aerodigital.espcon.App.serialPort;
-import java.io.BufferedInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -20,10 +17,8 @@ import jssc.SerialPortEvent;
  *
  * @author Pawel Jasinski
  */
-public class TurboTextFileUploadCommandExecutor extends AbstractCommandExecutor {
+public class TurboTextFileUploadCommandExecutor extends AbstractFileUploadCommandExecutor {
 
-    private String src;
-    private String target;
     private boolean autoRun;
 
     private enum State {
@@ -36,24 +31,19 @@ public class TurboTextFileUploadCommandExecutor extends AbstractCommandExecutor
     private State state;
 
     private static final int CHUNK_SIZE = 255; // effective payload is 254
-    private ArrayList<byte[]> sendBuffer;
+    private ArrayList<byte[]> luaBuffer;
     private int sendIndex;
-    private final byte[] fileReadBuffer = new byte[CHUNK_SIZE];
-
-     public TurboTextFileUploadCommandExecutor(String command) throws InvalidCommandException {
-        String args[] = command.split("\\s+");
-        if (args.length == 1 || args.length > 3) {
-            throw new InvalidCommandException("upload needs 1 or 2 arguments");
-        }
-        if (args.length == 2) {
-            src = args[1];
-            target = args[1];
-        } else {
-            src = args[1];
-            target = args[2];
-        }
+    private ReadAheadFile srcFile;
+    // chunks alternate, one is on the wire while the other is prepared
+    private final byte[][] chunks = {new byte[CHUNK_SIZE], new byte[CHUNK_SIZE]};
+    private int chunkIndex;
+    private boolean eofSent;
+    private byte[] pending; // next thing to send, null when all is sent
+
+    public TurboTextFileUploadCommandExecutor(String command) throws InvalidCommandException {
+        super(command);
         state = State.IDLE;
-        sendBuffer = new ArrayList<>();
+        luaBuffer = new ArrayList<>();
     }
 
     @Override
@@ -86,89 +76,115 @@ public class TurboTextFileUploadCommandExecutor extends AbstractCommandExecutor
                 + "end "
                 + "uart.on('data','\\r',rcv,0)\n";
 
-        sendBuffer.add(lua1.getBytes());
-        sendBuffer.add(lua2.getBytes());
-        sendBuffer.add(lua3.getBytes());
-        sendBuffer.add(lua4.getBytes());
-        File srcFile = new File(src);
-        InputStream srcFileIs;
+        luaBuffer.add(lua1.getBytes());
+        luaBuffer.add(lua2.getBytes());
+        luaBuffer.add(lua3.getBytes());
+        luaBuffer.add(lua4.getBytes());
         try {
-            srcFileIs = new BufferedInputStream(new FileInputStream(srcFile));
-        } catch (FileNotFoundException ex) {
+            srcFile = new ReadAheadFile(src);
+        } catch (IOException ex) {
             throw new InvalidCommandException("Unable to open src: " + src);
         }
+        sendIndex = 0;
+        chunkIndex = 0;
+        eofSent = false;
         try {
-            int read;
-            while (-1 != (read = srcFileIs.read(fileReadBuffer, 0, fileReadBuffer.length - 1))) {
-                fileReadBuffer[read] = '\r';
-                sendBuffer.add(Arrays.copyOfRange(fileReadBuffer, 0, read + 1));
-            }
-            sendBuffer.add("~~~esp~eof~~~\r".getBytes());
+            pending = loadNext();
         } catch (IOException ex) {
-            Util.close(srcFileIs);
+            Util.close(srcFile);
             throw new InvalidCommandException("Failed to read file chunk" + ex);
         }
-        Util.close(srcFileIs);
-        serialPort.pushEventListener(new SerialPortSink());
-        sendIndex = 0;
+        listen(new SerialPortSink());
         state = State.BUF_TRANSFER;
         sendNext();
     }
 
     private void sendNext() {
-        if (sendIndex < sendBuffer.size()) {
-            serialPort.writeBytesX(sendBuffer.get(sendIndex));
-            sendIndex++;
+        if (pending == null) {
+            return;
+        }
+        serialPort.writeBytesX(pending);
+        // prepare the following chunk while the esp digests this one
+        try {
+            pending = loadNext();
+        } catch (IOException ex) {
+            writer.println("Failed to read file chunk " + ex);
+            // terminate the file on the esp, what has been sent so far stays
+            pending = eofMarker();
         }
     }
 
+    /**
+     * @return lua chunk, file chunk terminated with \r, eof marker, or null
+     * @throws IOException
+     */
+    private byte[] loadNext() throws IOException {
+        if (sendIndex < luaBuffer.size()) {
+            return luaBuffer.get(sendIndex++);
+        }
+        if (eofSent) {
+            return null;
+        }
+        byte[] chunk = chunks[chunkIndex];
+        int read = srcFile.read(chunk, 0, CHUNK_SIZE - 1);
+        if (read == 0) {
+            return eofMarker();
+        }
+        chunkIndex ^= 1;
+        chunk[read] = '\r';
+        return read == CHUNK_SIZE - 1 ? chunk : Arrays.copyOf(chunk, read + 1);
+    }
 
+    private byte[] eofMarker() {
+        eofSent = true;
+        Util.close(srcFile);
+        return "~~~esp~eof~~~\r".getBytes();
+    }
 
-    private class SerialPortSink implements SerialPortEventListenerX {
+    private class SerialPortSink implements SerialPortEventListenerX, MarkerMatcher.Listener {
 
-        private String dataCollector;
+        private static final int PROMPT = 0;
+        private static final int DONE = 1;
+        private final MarkerMatcher matcher;
 
         public SerialPortSink() {
-            dataCollector = "";
+            matcher = new MarkerMatcher(this, "> ", "\r\n--Done--\r\n> ");
         }
 
         @Override
         public boolean serialEvent(SerialPortEvent event) {
             if (!event.isRXCHAR() || event.getEventValue() <= 0) {
                 return false;
-            }            dataCollector = dataCollector + serialPort.readStringX(event.getEventValue());
+            }
+            matcher.feed(serialPort);
+            return true;
+        }
+
+        @Override
+        public boolean marker(int marker) {
             switch (state) {
                 case IDLE:
-                    writer.println("unexpected data when in idle: " + dataCollector);
+                    writer.println("unexpected data when in idle: " + matcher.text());
                     break;
                 case BUF_TRANSFER:
-                    int endPos = dataCollector.indexOf("\r\n--Done--\r\n> ");
-                    if (-1 != endPos) {
+                    if (marker == DONE) {
                         writer.println(); // after dots
                         if (autoRun) {
-                            dataCollector = dataCollector.substring(endPos + 12);
                             state = State.AUTORUN;
+                            serialPort.writeStringX("\n"); // get next prompt
                         } else {
-                            serialPort.popEventListener();
+                            finish(true);
+                            return false;
                         }
-                        serialPort.writeStringX("\n"); // get next prompt, here or outside
                     } else {
-                        int promptPos = dataCollector.indexOf("> ");
-                        if (-1 != promptPos) {
-                            dataCollector = dataCollector.substring(promptPos + 2);
-                            writer.print(".");
-                            writer.flush();
-                            sendNext();
-                        }
+                        writer.print(".");
+                        writer.flush();
+                        sendNext();
                     }
                     break;
                 case AUTORUN:
-                    int promptPos = dataCollector.indexOf("> ");
-                    if (-1 != promptPos) {
-                        serialPort.popEventListener();
-                        serialPort.writeStringX(("dofile('" + target + "')\n"));
-                    }
-                    break;
+                    finish(true, "dofile('" + target + "')");
+                    return false;
                 default:
                     break;
             }
@@ -176,6 +192,44 @@ public class TurboTextFileUploadCommandExecutor extends AbstractCommandExecutor
         }
     }
 
+    /**
+     * The esp drops every \r (implicit dos2unix).
+     */
+    @Override
+    public InputStream openContent() throws IOException {
+        return new FilterInputStream(super.openContent()) {
+            @Override
+            public int read() throws IOException {
+                int b;
+                do {
+                    b = super.read();
+                } while (b == '\r');
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read;
+                int n;
+                do {
+                    read = super.read(b, off, len);
+                    n = 0;
+                    for (int i = off; i < off + read; i++) {
+                        if (b[i] != '\r') {
+                            b[off + n++] = b[i];
+                        }
+                    }
+                } while (read > 0 && n == 0);
+                return read < 0 ? read : n;
+            }
+        };
+    }
+
+    @Override
+    public String getAfterUploadLua() {
+        return autoRun ? "dofile('" + target + "')" : "";
+    }
+
     /**
      * @param autoRun the autoRun to set
      */
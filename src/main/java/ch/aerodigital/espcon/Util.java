@@ -7,7 +7,6 @@ package ch.aerodigital.espcon;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.ArrayList;
 
 /**
  *
@@ -15,33 +14,65 @@ import java.util.ArrayList;
  */
 public class Util {
 
-    public static ArrayList<String> cmdPrep(String cmd) {
-        ArrayList<String> s256 = new ArrayList<>();
-        int i = 0;
-        s256.add("");
-        for (String subs : cmd.split("\n")) {
-            // TODO: this should be a string builder
-            if ((s256.get(i).length() + subs.trim().length()) <= 250) {
-                s256.set(i, s256.get(i) + " " + subs.trim());
-            } else {
-                s256.set(i, s256.get(i) + "\n");
-                s256.add(subs);
-                i++;
+    /**
+     * Table for nibble at a time CRC-32, small enough to live in esp heap.
+     *
+     * @return 16 entries, as signed 32 bit values (lua bit module friendly)
+     */
+    public static int[] crc32NibbleTable() {
+        int[] table = new int[16];
+        for (int i = 0; i < 16; i++) {
+            int c = i;
+            for (int k = 0; k < 4; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ 0xEDB88320 : c >>> 1;
             }
+            table[i] = c;
         }
-        // s256.set(i-1, s256.get(i-1)+"\n");
-        // could help in some situations, this makes sures the last one has \n as well
-        return s256;
+        return table;
     }
 
-    public static int CRC(byte[] s) {
-        int cs = 0;
-        int x;
-        for (int i = 0; i < s.length; i++) {
-            x = s[i] & 0xFF;
-            cs = cs + (x * 20) % 19;
+    /**
+     * Lua snippet defining local T (nibble table) and local function crc(r,x)
+     * which adds byte x to running crc r. Start with r=-1 and finish with
+     * bit.bnot(r).
+     *
+     * @return lua source, one statement per line
+     */
+    public static String luaCrc32() {
+        int[] table = crc32NibbleTable();
+        StringBuilder sb = new StringBuilder("local T={[0]=0");
+        for (int i = 1; i < table.length; i++) {
+            sb.append(i == 8 ? ",\n" : ",").append(table[i]);
         }
-        return cs;
+        sb.append("}\n");
+        sb.append("local function crc(r,x)\n");
+        sb.append("  r=bit.bxor(r,x)\n");
+        sb.append("  r=bit.bxor(bit.rshift(r,4),T[bit.band(r,15)])\n");
+        sb.append("  return bit.bxor(bit.rshift(r,4),T[bit.band(r,15)])\n");
+        sb.append("end\n");
+        return sb.toString();
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The esp lua is built with LUA_COMPAT_LSTR, [[ inside a level 0 long
+     * string is an error, such text starts at level 1.
+     *
+     * @return text as lua long string, with a level the text does not close
+     */
+    public static String longString(String text) {
+        String eq = text.contains("[[") ? "=" : "";
+        while ((text + "]").contains("]" + eq + "]")) {
+            eq += "=";
+        }
+        return "[" + eq + "[" + text + "]" + eq + "]";
     }
 
     public static void close(Closeable closeable) {
@@ -0,0 +1,105 @@
+package ch.aerodigital.espcon;
+
+import java.io.ByteArrayOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for BlockReader.
+ */
+public class BlockReaderTest extends TestCase {
+
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private String error;
+    private boolean ended;
+
+    private final BlockReader reader = new BlockReader(new BlockReader.Listener() {
+        @Override
+        public void block(byte[] data, int off, int len) {
+            received.write(data, off, len);
+        }
+
+        @Override
+        public void end(String e) {
+            ended = true;
+            error = e;
+        }
+    });
+
+    private static void frame(ByteArrayOutputStream out, byte[] block) {
+        out.write("~~~BLK~~~".getBytes(), 0, 9);
+        out.write(block.length >> 8);
+        out.write(block.length & 0xFF);
+        out.write(block, 0, block.length);
+    }
+
+    /**
+     * Blocks may contain markers and prompts, they are taken as data. After
+     * the end block the prompt is left.
+     */
+    public void testBlocksInPieces() {
+        byte[] first = new byte[300];
+        for (int i = 0; i < first.length; i++) {
+            first[i] = (byte) i;
+        }
+        byte[] second = "> ~~~BLK~~~\r\n".getBytes();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frame(out, first);
+        frame(out, second);
+        frame(out, new byte[0]);
+        out.write('>');
+        out.write(' ');
+        byte[] data = out.toByteArray();
+        int consumed = 0;
+        for (int i = 0; i < data.length; i += 7) {
+            consumed += reader.feed(data, i, Math.min(7, data.length - i));
+        }
+        assertTrue(ended);
+        assertNull(error);
+        assertEquals(data.length - 2, consumed);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first, 0, first.length);
+        expected.write(second, 0, second.length);
+        assertTrue(java.util.Arrays.equals(expected.toByteArray(), received.toByteArray()));
+        assertEquals(first.length + second.length, reader.getReceived());
+    }
+
+    public void testMissingFile() {
+        byte[] data = "~~~BLK-ERROR~~~\r\n> ".getBytes();
+        assertEquals(data.length, reader.feed(data, 0, data.length));
+        assertTrue(ended);
+        assertEquals("unable to open the file", error);
+    }
+
+    public void testErrorWithReason() {
+        byte[] data = "~~~BLK-ERROR~~~no such file\r\n> ".getBytes();
+        reader.feed(data, 0, data.length);
+        assertEquals("no such file", error);
+    }
+
+    public void testLuaError() {
+        byte[] data = "stdin:1: bad argument\r\n> ".getBytes();
+        reader.feed(data, 0, data.length);
+        assertTrue(ended);
+        assertEquals("stdin:1: bad argument", error);
+    }
+
+    public void testPromptInsideLine() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("a> b\r\n".getBytes(), 0, 6);
+        frame(out, "x".getBytes());
+        frame(out, new byte[0]);
+        byte[] data = out.toByteArray();
+        reader.feed(data, 0, data.length);
+        assertTrue(ended);
+        assertNull(error);
+        assertEquals("a> b\r\n", reader.getOutside());
+        assertEquals("x", received.toString());
+    }
+
+    public void testLuaErrorAfterPromptInsideLine() {
+        byte[] data = "a> b\r\nstdin:1: bad argument\r\n> ".getBytes();
+        reader.feed(data, 0, data.length);
+        assertTrue(ended);
+        assertEquals("a> b\r\nstdin:1: bad argument", error);
+    }
+}
@@ -0,0 +1,40 @@
+package ch.aerodigital.espcon;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for LinkTuner.
+ */
+public class LinkTunerTest extends TestCase {
+
+    public void testWindowGrowsOnIdleLink() {
+        LinkTuner tuner = new LinkTuner(8, 200);
+        for (int i = 0; i < 100; i++) {
+            tuner.packetDone(true, 10000000);
+        }
+        assertEquals(8, tuner.getWindow());
+        assertEquals(200, tuner.getPacketSize());
+    }
+
+    public void testWindowStopsGrowingWhenRttGrows() {
+        LinkTuner tuner = new LinkTuner(16, 200);
+        for (int i = 0; i < 200; i++) {
+            // saturated link, every extra packet in flight adds a packet time
+            tuner.packetDone(true, 10000000L * Math.max(1, tuner.getWindow() - 2));
+        }
+        assertTrue(tuner.getWindow() < 16);
+    }
+
+    public void testPacketSizeFollowsErrors() {
+        LinkTuner tuner = new LinkTuner(4, 200);
+        for (int i = 0; i < 4; i++) {
+            tuner.packetDone(false, 10000000);
+        }
+        assertEquals(100, tuner.getPacketSize());
+        assertEquals(1, tuner.getWindow());
+        for (int i = 0; i < 64; i++) {
+            tuner.packetDone(true, 10000000);
+        }
+        assertEquals(200, tuner.getPacketSize());
+    }
+}
@@ -0,0 +1,95 @@
+package ch.aerodigital.espcon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for LuaPacker.
+ */
+public class LuaPackerTest extends TestCase {
+
+    public void testJoinsLinesAndDropsComments() {
+        String lua = "function f(x)\n"
+                + "  -- double it\n"
+                + "  local y = x * 2 --[[ long\n comment ]]\n"
+                + "\n"
+                + "  return y\r\n"
+                + "end\n";
+        assertEquals(Arrays.asList("function f(x)local y=x*2 return y end"), LuaPacker.pack(lua));
+    }
+
+    public void testKeepsStrings() {
+        String lua = "print('a -- b',  \"c\\\"  d\")\ns = [==[x\n  ]] y]==] .. 1\n";
+        assertEquals(Arrays.asList("print('a -- b',\"c\\\"  d\")s=[==[x", "  ]] y]==] .. 1"),
+                LuaPacker.pack(lua));
+    }
+
+    public void testSpacesWhichMatter() {
+        assertEquals(Arrays.asList("a=b- -c"), LuaPacker.pack("a = b - -c"));
+        assertEquals(Arrays.asList("a=1 .. x"), LuaPacker.pack("a = 1 .. x"));
+        assertEquals(Arrays.asList("t[ [[x]]]=a==b"), LuaPacker.pack("t[ [[x]] ] = a == b"));
+        assertEquals(Arrays.asList("if a~=b then end"), LuaPacker.pack("if a ~= b then end"));
+    }
+
+    public void testFillsUpToLimit() {
+        StringBuilder lua = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            lua.append("x").append(i).append(" = ").append(i).append("\n");
+        }
+        ArrayList<String> lines = LuaPacker.pack(lua.toString(), 40);
+        int length = 0;
+        StringBuilder joined = new StringBuilder();
+        for (String line : lines) {
+            assertTrue(line, line.length() <= 40);
+            length += line.length();
+            joined.append(line.replace(" ", ""));
+        }
+        // every line but the last one is full up to the next token
+        assertTrue(lines.size() <= length / (40 - 4) + 1);
+        assertEquals(lua.toString().replaceAll("\\s", ""), joined.toString());
+    }
+
+    public void testNoBreakBeforeParenthesis() {
+        assertEquals(Arrays.asList("aaaa=f(g", ")"), LuaPacker.pack("aaaa = f\n(g)", 8));
+        // the token in front of ( goes to the next line with it
+        assertEquals(Arrays.asList("aaaa=", "ff(g)"), LuaPacker.pack("aaaa = ff(g)", 7));
+        assertEquals(Arrays.asList("aaaa=f", "g=1"), LuaPacker.pack("aaaa = f\ng = 1", 8));
+        try {
+            LuaPacker.pack("print(x)", 5);
+            fail("call over the limit");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("print"));
+        }
+    }
+
+    public void testBreaksStatementOnlyWhereIncomplete() {
+        // a REPL line ending in "prefix" or "s9" would run as it is
+        String lua = "local s18 = prefix .. suffix local s19 = prefix .. suffix";
+        ArrayList<String> lines = LuaPacker.pack(lua, 20);
+        assertEquals(Arrays.asList("local s18=prefix ..", "suffix local s19=", "prefix .. suffix"), lines);
+        // a newline in the source is kept only where the next statement starts
+        assertEquals(Arrays.asList("x=a", "y=b"), LuaPacker.pack("x = a\ny = b", 4));
+        assertEquals(Arrays.asList("x=", "a+b"), LuaPacker.pack("x = a\n+ b", 3));
+    }
+
+    public void testBreaksLongRunBetweenTokens() {
+        ArrayList<String> lines = LuaPacker.pack("x=a.b..'cd'..f(1.5e+3)", 8);
+        assertEquals(Arrays.asList("x=a.b..", "'cd'..f(", "1.5e+3)"), lines);
+        assertEquals(Arrays.asList("x", "=", ".5", "+", "y", "..", "z", "~=", "f", "(", "...", ")"),
+                LuaPacker.tokens("x=.5+y..z~=f(...)"));
+    }
+
+    public void testTokenLongerThanLimit() {
+        try {
+            LuaPacker.pack("print('a string which does not fit')", 20);
+            fail("string over the limit");
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("'a string"));
+        }
+    }
+
+    public void testEmpty() {
+        assertTrue(LuaPacker.pack("  -- nothing\n\n").isEmpty());
+    }
+}
@@ -0,0 +1,77 @@
+package ch.aerodigital.espcon;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for LzCompressor.
+ */
+public class LzCompressorTest extends TestCase {
+
+    /**
+     * Same algorithm as the lua decoder, including the history kept as pieces
+     * and trimmed after every call.
+     */
+    private static byte[] decode(LzCompressor compressor) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<byte[]> history = new ArrayList<>();
+        while (compressor.hasNext()) {
+            byte[] c = compressor.next();
+            int t = c[0] & 0xFF;
+            byte[] s;
+            if (t < 128) {
+                assertEquals(t + 2, c.length);
+                s = Arrays.copyOfRange(c, 1, c.length);
+            } else {
+                assertEquals(3, c.length);
+                int a = ((c[1] & 0xFF) << 8) | (c[2] & 0xFF);
+                int len = t - 125;
+                assertTrue(a >= len);
+                int k = history.size() - 1;
+                while (a > history.get(k).length) {
+                    a -= history.get(k).length;
+                    k--;
+                }
+                ByteArrayOutputStream match = new ByteArrayOutputStream();
+                byte[] piece = history.get(k);
+                match.write(piece, piece.length - a, Math.min(a, len));
+                while (match.size() < len) {
+                    piece = history.get(++k);
+                    match.write(piece, 0, Math.min(piece.length, len - match.size()));
+                }
+                s = match.toByteArray();
+            }
+            out.write(s, 0, s.length);
+            history.add(s);
+            // a call per token, the most often the lua decoder trims
+            int k = history.size() - 1;
+            int kept = 0;
+            while (k >= 0 && kept < LzCompressor.WINDOW) {
+                kept += history.get(k--).length;
+            }
+            history.subList(0, k + 1).clear();
+        }
+        return out.toByteArray();
+    }
+
+    public void testRoundTrip() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            sb.append("print('line ").append(i % 37).append("')\n");
+        }
+        byte[] data = sb.toString().getBytes();
+        assertTrue(Arrays.equals(data, decode(new LzCompressor(data))));
+    }
+
+    public void testRoundTripBinary() {
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ((i * i) >> 5);
+        }
+        assertTrue(Arrays.equals(data, decode(new LzCompressor(data))));
+        assertEquals(0, decode(new LzCompressor(new byte[0])).length);
+    }
+}
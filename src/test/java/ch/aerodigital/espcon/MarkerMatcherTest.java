@@ -0,0 +1,77 @@
+package ch.aerodigital.espcon;
+
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for MarkerMatcher.
+ */
+public class MarkerMatcherTest extends TestCase {
+
+    private final ArrayList<String> found = new ArrayList<>();
+    private MarkerMatcher matcher;
+
+    private void feed(String data) {
+        byte[] bytes = data.getBytes();
+        // one byte at a time, markers are split over events
+        for (int i = 0; i < bytes.length; i++) {
+            matcher.feed(bytes, i, 1);
+        }
+    }
+
+    private MarkerMatcher create(String... markers) {
+        return new MarkerMatcher(new MarkerMatcher.Listener() {
+            @Override
+            public boolean marker(int marker) {
+                found.add(marker + ":" + matcher.text());
+                return true;
+            }
+        }, markers);
+    }
+
+    public void testTextBetweenMarkers() {
+        matcher = create("~~~CRC-START~~~", "~~~CRC-END~~~");
+        feed("junk~~~CRC-START~~~12:1~~~CRC-END~~~~~~CRC-START~~~13:0~~~CRC-END~~~");
+        assertEquals("[0:junk, 1:12:1, 0:, 1:13:0]", found.toString());
+    }
+
+    public void testLongestMarkerWins() {
+        matcher = create("> ", "\r\n> ", "\r\n--Done--");
+        feed("> \r\n--Done--123\r\n> >> ");
+        assertEquals("[0:, 2:, 1:123, 0:>]", found.toString());
+    }
+
+    public void testPartialMatchFallsBack() {
+        matcher = create("abcd", "bce");
+        feed("xabcex");
+        assertEquals("[1:xa]", found.toString());
+    }
+
+    public void testWatch() {
+        matcher = create("> ", "done");
+        matcher.watch(1);
+        feed("a > b done");
+        assertEquals("[1:a > b ]", found.toString());
+    }
+
+    public void testTakeTextHoldsBackMarkerPrefix() {
+        matcher = create("--HexDump done");
+        feed("00000000  41 --Hex");
+        assertEquals("00000000  41 ", matcher.takeText());
+        feed("Dump");
+        assertEquals("", matcher.takeText());
+        feed("ing --HexDump done");
+        assertEquals("[0:--HexDumping ]", found.toString());
+    }
+
+    public void testStopLeavesRest() {
+        matcher = new MarkerMatcher(new MarkerMatcher.Listener() {
+            @Override
+            public boolean marker(int marker) {
+                return false;
+            }
+        }, "> ");
+        byte[] data = "abc> rest".getBytes();
+        assertEquals(5, matcher.feed(data, 0, data.length));
+    }
+}
@@ -0,0 +1,68 @@
+package ch.aerodigital.espcon;
+
+import java.util.ArrayList;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for ReplLineParser.
+ */
+public class ReplLineParserTest extends TestCase {
+
+    private final ArrayList<String> events = new ArrayList<>();
+    private final ReplLineParser parser = new ReplLineParser(new ReplLineParser.Listener() {
+        @Override
+        public void line(String line) {
+            events.add("line:" + line);
+        }
+
+        @Override
+        public void prompt(String prompt) {
+            events.add("prompt:" + prompt);
+        }
+
+        @Override
+        public void marker() {
+            events.add("marker");
+        }
+    }, "~~~END~~~");
+
+    private void feed(String data) {
+        byte[] bytes = data.getBytes();
+        parser.feed(bytes, 0, bytes.length);
+    }
+
+    public void testLinesAndPrompt() {
+        feed("hello\r\nworld\r\n> ");
+        assertEquals("[line:hello, line:world, prompt:> ]", events.toString());
+    }
+
+    public void testLineEndSplitOverBatches() {
+        feed("abc\r");
+        feed("\ndef");
+        feed("\r\n>");
+        feed("> ");
+        assertEquals("[line:abc, line:def, prompt:>> ]", events.toString());
+    }
+
+    public void testEchoedPromptsAndMarker() {
+        feed("> \r\n>> \r\n~~~END~~~\r\n~~~END~~~x\r\n");
+        assertEquals("[marker, line:~~~END~~~x]", events.toString());
+    }
+
+    public void testPromptNotAtLineStart() {
+        feed("a > b");
+        assertTrue(events.isEmpty());
+        feed("\r\n");
+        assertEquals("[line:a > b]", events.toString());
+    }
+
+    public void testLongLine() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append('x');
+            feed("x");
+        }
+        feed("\r\n");
+        assertEquals("[line:" + sb + "]", events.toString());
+    }
+}
@@ -0,0 +1,53 @@
+package ch.aerodigital.espcon;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for RxRingBuffer.
+ */
+public class RxRingBufferTest extends TestCase {
+
+    public void testCapacityIsPowerOfTwo() {
+        assertEquals(16, new RxRingBuffer(16).capacity());
+        assertEquals(32, new RxRingBuffer(17).capacity());
+    }
+
+    public void testWriteStopsWhenFull() {
+        RxRingBuffer rx = new RxRingBuffer(8);
+        assertEquals(8, rx.write(new byte[10], 0, 10));
+        assertEquals(0, rx.free());
+        assertEquals(0, rx.write(new byte[1], 0, 1));
+    }
+
+    public void testWrapAround() {
+        RxRingBuffer rx = new RxRingBuffer(8);
+        byte[] out = new byte[8];
+        int expected = 0;
+        int next = 0;
+        for (int round = 0; round < 50; round++) {
+            byte[] in = new byte[round % 7 + 1];
+            for (int i = 0; i < in.length; i++) {
+                in[i] = (byte) (next + i);
+            }
+            next += rx.write(in, 0, in.length);
+            int n = rx.read(out, 0, round % 5 + 1);
+            for (int i = 0; i < n; i++) {
+                assertEquals((byte) expected++, out[i]);
+            }
+        }
+        assertEquals(next - expected, rx.available());
+    }
+
+    public void testReadStringAcrossEnd() {
+        RxRingBuffer rx = new RxRingBuffer(8);
+        rx.write("abcdef".getBytes(), 0, 6);
+        assertEquals("abcd", rx.readString(4));
+        rx.write("ghijk".getBytes(), 0, 5);
+        assertEquals("efghijk", rx.readString(100));
+        assertEquals("", rx.readString(1));
+        byte[] out = new byte[4];
+        assertEquals(0, rx.read(out, 0, 4));
+        assertTrue(Arrays.equals(new byte[4], out));
+    }
+}
@@ -0,0 +1,102 @@
+package ch.aerodigital.espcon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for the batching of TextFileUploadCommandExecutor.
+ */
+public class TextFileUploadCommandExecutorTest extends TestCase {
+
+    private static final int MAX = 60;
+
+    private static List<String> batches(String text) throws IOException {
+        TextFileUploadCommandExecutor.Batches batches
+                = new TextFileUploadCommandExecutor.Batches(new BufferedReader(new StringReader(text)), MAX);
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = batches.next()) != null) {
+            lines.add(line);
+        }
+        assertEquals(text.length(), batches.done());
+        return lines;
+    }
+
+    /**
+     * @return the text the REPL lines write, as file.write and
+     * file.writeline would
+     */
+    private static String run(List<String> lines) {
+        StringBuilder written = new StringBuilder();
+        for (String line : lines) {
+            assertTrue(line, line.endsWith("\n"));
+            assertTrue(line, line.getBytes().length - 1 <= MAX);
+            // through the bytes, a split surrogate pair does not come back
+            String lua = new String(line.getBytes());
+            int pos = 0;
+            while (pos < lua.length() - 1) {
+                String call = lua.substring(pos, pos + 2);
+                assertTrue(lua, call.equals("w(") || call.equals("W("));
+                int level = 0;
+                while (lua.charAt(pos + 3 + level) == '=') {
+                    level++;
+                }
+                String close = "]" + lua.substring(pos + 3, pos + 3 + level) + "])";
+                int end = lua.indexOf(close, pos);
+                assertTrue(lua, end > 0);
+                written.append(lua, pos + 4 + level, end);
+                if (call.equals("w(")) {
+                    written.append('\n');
+                }
+                pos = end + close.length();
+            }
+        }
+        return written.toString();
+    }
+
+    public void testBatchesLines() throws IOException {
+        String text = "a\nb\n\nc\n";
+        List<String> lines = batches(text);
+        assertEquals(1, lines.size());
+        assertEquals("w([[a]])w([[b]])w([[]])w([[c]])\n", lines.get(0));
+        assertEquals(text, run(lines));
+    }
+
+    public void testLongBrackets() throws IOException {
+        String text = "x]]y\nt[ [[s]]]\nz]==]]=]\n[[\n]\n";
+        List<String> lines = batches(text);
+        assertEquals(text, run(lines));
+        assertTrue(lines.size() > 1);
+    }
+
+    public void testLineLongerThanReplLine() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            text.append(i).append(i % 7 == 0 ? "]]" : " ");
+        }
+        text.append("\nshort\n");
+        List<String> lines = batches(text.toString());
+        assertTrue(lines.get(0), lines.get(0).startsWith("W("));
+        assertEquals(text.toString(), run(lines));
+    }
+
+    public void testSurrogatePairsAtPartBoundary() throws IOException {
+        // every offset of the pairs against the part length
+        for (int prefix = 0; prefix < 4; prefix++) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < prefix; i++) {
+                text.append('x');
+            }
+            for (int i = 0; i < 40; i++) {
+                text.append("\uD83D\uDE00");
+            }
+            text.append('\n');
+            // as the bytes the pairs are in the default charset
+            assertEquals(new String(text.toString().getBytes()), run(batches(text.toString())));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package ch.aerodigital.espcon;
+
+import java.util.zip.CRC32;
+import junit.framework.TestCase;
+
+/**
+ * Unit test for Util.
+ */
+public class UtilTest extends TestCase {
+
+    /**
+     * The esp computes crc a nibble at a time, it has to agree with zip crc.
+     */
+    public void testCrc32NibbleTable() {
+        byte[] data = new byte[300];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        assertCrc(data);
+        assertCrc(new byte[0]);
+        byte[] all = new byte[256];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (byte) i;
+        }
+        assertCrc(all);
+    }
+
+    private static void assertCrc(byte[] data) {
+        int[] table = Util.crc32NibbleTable();
+        int r = -1;
+        for (byte b : data) {
+            r ^= b & 0xFF;
+            r = (r >>> 4) ^ table[r & 15];
+            r = (r >>> 4) ^ table[r & 15];
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        assertEquals(crc.getValue(), ~r & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The level is the lowest one the text can not close.
+     */
+    public void testLongString() {
+        assertEquals("[[a]]", Util.longString("a"));
+        assertEquals("[=[a]]b]=]", Util.longString("a]]b"));
+        assertEquals("[==[a]]]=]]==]", Util.longString("a]]]=]"));
+        assertEquals("[=[a]]=]", Util.longString("a]"));
+        // nested [[ is an error at level 0 with LUA_COMPAT_LSTR
+        assertEquals("[=[a[[b]=]", Util.longString("a[[b"));
+        assertEquals("[==[[[a]=]]==]", Util.longString("[[a]=]"));
+    }
+}